@@ -0,0 +1,325 @@
+package Client;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless capacity test: thousands of simulated users speaking the text
+// protocol against a running server. Each user registers (or logs in, if the
+// name already exists), joins its room and then sends MESSAGE, or occasionally
+// PM, at a fixed rate. Every message carries the time it was due to be sent,
+// so the end-to-end latency recorded on delivery includes any time the sender
+// itself was held up (no coordinated omission).
+//
+//   java -cp target/benchmarks.jar Client.LoadGenerator --users=2000 --room-size=50 \
+//       --rate=1 --payload=100 --warmup=10 --duration=60
+//
+// Users and senders are virtual threads, so one machine can drive many
+// thousands of connections. Run it on a different box from the server when
+// the numbers matter.
+public class LoadGenerator {
+	private static final String PASSWORD = "LoadTest#2024pw";
+	private static final String MARK = "LT";
+	private static final long AUTH_RETRY_MILLIS = 200;
+	private static final long REPORT_INTERVAL_MILLIS = 5000;
+
+	// --name=value, as for the server
+	private static final class Options {
+		String host = "127.0.0.1";
+		int port = 5000;
+		int users = 1000;
+		int roomSize = 50;
+		double rate = 1.0;          // messages per second per user
+		int payload = 64;           // bytes of filler per message
+		double pmPercent = 0;       // share of messages sent as PM to a room-mate
+		int connectRate = 200;      // new connections per second
+		int warmup = 10;            // seconds, not recorded
+		int duration = 60;          // seconds, recorded
+		String prefix = "lt";       // usernames are prefix + index
+
+		static Options parse(String[] args) {
+			Options options = new Options();
+			for (String arg : args) {
+				int eq = arg.indexOf('=');
+				if (!arg.startsWith("--") || eq < 0) {
+					throw new IllegalArgumentException("Malformed option: " + arg);
+				}
+				String name = arg.substring(2, eq);
+				String value = arg.substring(eq + 1);
+				switch (name) {
+					case "host": options.host = value; break;
+					case "port": options.port = Integer.parseInt(value); break;
+					case "users": options.users = Integer.parseInt(value); break;
+					case "room-size": options.roomSize = Integer.parseInt(value); break;
+					case "rate": options.rate = Double.parseDouble(value); break;
+					case "payload": options.payload = Integer.parseInt(value); break;
+					case "pm-percent": options.pmPercent = Double.parseDouble(value); break;
+					case "connect-rate": options.connectRate = Integer.parseInt(value); break;
+					case "warmup": options.warmup = Integer.parseInt(value); break;
+					case "duration": options.duration = Integer.parseInt(value); break;
+					case "prefix": options.prefix = value; break;
+					default: throw new IllegalArgumentException("Unknown option: " + arg);
+				}
+			}
+			if (options.users <= 0 || options.roomSize <= 0 || options.rate <= 0 || options.connectRate <= 0) {
+				throw new IllegalArgumentException("users, room-size, rate and connect-rate must be positive");
+			}
+			return options;
+		}
+	}
+
+	private final Options options;
+	// Tags this run's messages so history replayed on JOIN is not mistaken for them
+	private final String runId = Long.toString(ThreadLocalRandom.current().nextLong(1L << 40), 36);
+	private final String filler;
+	private final Recorder latency = new Recorder(TimeUnit.MINUTES.toNanos(5), 3);
+	private final CountDownLatch ready;
+	private final CountDownLatch go = new CountDownLatch(1);
+	private final AtomicBoolean stopping = new AtomicBoolean();
+	private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder connectFailures = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder authRetries = new LongAdder();
+	private final LongAdder authFailures = new LongAdder();
+	private final LongAdder disconnects = new LongAdder();
+
+	private LoadGenerator(Options options) {
+		this.options = options;
+		this.ready = new CountDownLatch(options.users);
+		char[] pad = new char[options.payload];
+		Arrays.fill(pad, 'x');
+		this.filler = new String(pad);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		new LoadGenerator(Options.parse(args)).run();
+	}
+
+	private void run() throws InterruptedException {
+		int rooms = (options.users + options.roomSize - 1) / options.roomSize;
+		System.out.printf("%d users in %d rooms of up to %d, %.2f msg/s each, %d byte payload, %s:%d%n",
+				options.users, rooms, options.roomSize, options.rate, options.payload, options.host, options.port);
+
+		long connectStart = System.nanoTime();
+		long connectInterval = TimeUnit.SECONDS.toNanos(1) / options.connectRate;
+		for (int i = 0; i < options.users; i++) {
+			int user = i;
+			Thread.ofVirtual().name("user-" + i).start(() -> user(user));
+			sleepUntil(connectStart + (i + 1) * connectInterval);
+		}
+		if (!ready.await(5, TimeUnit.MINUTES)) {
+			System.out.println("Gave up waiting for " + ready.getCount() + " users to log in");
+		}
+		System.out.printf("Connected in %.1fs: %d connect failures, %d rejected as full, %d auth failures, %d auth retries%n",
+				(System.nanoTime() - connectStart) / 1e9, connectFailures.sum(), rejected.sum(), authFailures.sum(), authRetries.sum());
+
+		go.countDown();
+		Thread.sleep(TimeUnit.SECONDS.toMillis(options.warmup));
+		latency.reset();
+		long sentAtStart = sent.sum();
+		long deliveredAtStart = delivered.sum();
+		long start = System.nanoTime();
+
+		Histogram total = null;
+		long end = start + TimeUnit.SECONDS.toNanos(options.duration);
+		while (System.nanoTime() < end) {
+			Thread.sleep(Math.min(REPORT_INTERVAL_MILLIS, Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+			Histogram interval = latency.getIntervalHistogram();
+			if (total == null) {
+				total = interval.copy();
+			} else {
+				total.add(interval);
+			}
+			System.out.printf("  %5.0fs  sent %,10d  delivered %,12d  p50 %8.2fms  p99 %8.2fms  max %8.2fms%n",
+					(System.nanoTime() - start) / 1e9, sent.sum() - sentAtStart, delivered.sum() - deliveredAtStart,
+					millis(interval.getValueAtPercentile(50)), millis(interval.getValueAtPercentile(99)), millis(interval.getMaxValue()));
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long sentTotal = sent.sum() - sentAtStart;
+		long deliveredTotal = delivered.sum() - deliveredAtStart;
+		stopping.set(true);
+		for (Socket socket : sockets) {
+			closeQuietly(socket);
+		}
+
+		System.out.printf("%nThroughput: %,.0f msg/s sent, %,.0f msg/s delivered over %.0fs%n",
+				sentTotal / seconds, deliveredTotal / seconds, seconds);
+		if (total != null && total.getTotalCount() > 0) {
+			System.out.println("End-to-end delivery latency (ms):");
+			for (double percentile : new double[] { 50, 90, 99, 99.9, 99.99 }) {
+				System.out.printf("  p%-6s %10.3f%n", percentile, millis(total.getValueAtPercentile(percentile)));
+			}
+			System.out.printf("  max     %10.3f%n", millis(total.getMaxValue()));
+		}
+		System.out.printf("Connections: %d connect failures, %d rejected as full, %d auth failures, %d dropped mid-run%n",
+				connectFailures.sum(), rejected.sum(), authFailures.sum(), disconnects.sum());
+	}
+
+	// One simulated user, start to finish, on its own virtual thread
+	private void user(int index) {
+		String username = options.prefix + index;
+		int room = index / options.roomSize;
+		Socket socket = new Socket();
+		boolean counted = false;
+		try {
+			socket.connect(new InetSocketAddress(options.host, options.port), 10_000);
+			sockets.add(socket);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+			// Answers PINGs below, so it is held to the short idle timeout like the real client
+			out.write("HEARTBEAT\n");
+			if (!authenticate(username, in, out)) {
+				return;
+			}
+			out.write("JOIN R" + room + "\n");
+			out.flush();
+			String line;
+			while ((line = in.readLine()) != null && !line.startsWith("SERVER: Joined room")) {
+				record(line);
+			}
+			ready.countDown();
+			counted = true;
+
+			Thread.ofVirtual().name("sender-" + index).start(() -> send(index, room, out));
+			while ((line = in.readLine()) != null) {
+				if (line.equals("PING")) {
+					// Writer calls lock, so this can't split a line the sender is writing
+					out.write("PONG\n");
+					out.flush();
+					continue;
+				}
+				record(line);
+			}
+			if (!stopping.get()) {
+				disconnects.increment();
+			}
+		} catch (IOException e) {
+			if (!stopping.get()) {
+				if (socket.isConnected()) {
+					disconnects.increment();
+				} else {
+					connectFailures.increment();
+				}
+			}
+		} finally {
+			if (!counted) {
+				ready.countDown();
+			}
+			closeQuietly(socket);
+		}
+	}
+
+	// Registers, or logs in if the name is taken; retries while the server is busy hashing
+	private boolean authenticate(String username, BufferedReader in, Writer out) throws IOException {
+		boolean register = true;
+		while (true) {
+			out.write((register ? "2\n" : "1\n") + username + "\n" + PASSWORD + "\n");
+			out.flush();
+			String reply = in.readLine();
+			if (reply == null) {
+				authFailures.increment();
+				return false;
+			}
+			if (reply.startsWith("Server is full")) {
+				rejected.increment();
+				return false;
+			}
+			if (reply.startsWith("Registration successful") || reply.startsWith("Login successful")) {
+				return true;
+			}
+			if (reply.contains("busy")) {
+				authRetries.increment();
+				sleepQuietly(AUTH_RETRY_MILLIS + ThreadLocalRandom.current().nextLong(AUTH_RETRY_MILLIS));
+			} else if (register && reply.contains("already exists")) {
+				register = false;
+			} else {
+				authFailures.increment();
+				return false;
+			}
+		}
+	}
+
+	private void send(int index, int room, Writer out) {
+		try {
+			go.await();
+			long interval = (long) (TimeUnit.SECONDS.toNanos(1) / options.rate);
+			long next = System.nanoTime() + ThreadLocalRandom.current().nextLong(interval);
+			int roomStart = room * options.roomSize;
+			int roomUsers = Math.min(options.roomSize, options.users - roomStart);
+			while (!stopping.get()) {
+				sleepUntil(next);
+				// Stamped with when it was due, not when this thread got round to it
+				String body = MARK + " " + runId + " " + next + " " + filler;
+				if (options.pmPercent > 0 && roomUsers > 1 && ThreadLocalRandom.current().nextDouble(100) < options.pmPercent) {
+					// Anyone in the room but this user
+					int peer = roomStart + (index - roomStart + 1 + ThreadLocalRandom.current().nextInt(roomUsers - 1)) % roomUsers;
+					out.write("PM " + options.prefix + peer + " " + body + "\n");
+				} else {
+					out.write("MESSAGE R" + room + " " + body + "\n");
+				}
+				out.flush();
+				sent.increment();
+				next += interval;
+			}
+		} catch (IOException | InterruptedException e) {
+			// The reader side notices and counts the disconnect
+		}
+	}
+
+	// "<sender>: LT <run> <due> ...", "[PM] <sender>: LT <run> <due> ..." or anything else
+	private void record(String line) {
+		long now = System.nanoTime();
+		int mark = line.indexOf(": " + MARK + " ");
+		if (mark < 0 || line.startsWith("[PM to ")) return;
+		int runStart = mark + 2 + MARK.length() + 1;
+		int runEnd = line.indexOf(' ', runStart);
+		if (runEnd < 0 || !line.regionMatches(runStart, runId, 0, runId.length()) || runEnd - runStart != runId.length()) return;
+		int dueEnd = line.indexOf(' ', runEnd + 1);
+		try {
+			long due = Long.parseLong(line, runEnd + 1, dueEnd < 0 ? line.length() : dueEnd, 10);
+			latency.recordValue(Math.max(0, now - due));
+			delivered.increment();
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			// Someone else's message that happens to look like ours
+		}
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	private static void sleepUntil(long deadline) {
+		long remaining = deadline - System.nanoTime();
+		if (remaining > 0) {
+			sleepQuietly(TimeUnit.NANOSECONDS.toMillis(remaining));
+		}
+	}
+
+	private static void sleepQuietly(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException ignored) {
+		}
+	}
+}
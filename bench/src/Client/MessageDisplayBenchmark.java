@@ -0,0 +1,79 @@
+package Client;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import javax.swing.JScrollPane;
+import javax.swing.JViewport;
+
+// Frame time of the chat transcript, headless and off the EDT (nothing else
+// touches these components). scroll moves the view down a few lines and paints
+// the whole scroll pane into an image, as one frame of scrolling would; resize
+// changes the width, which lays every message out again.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class MessageDisplayBenchmark {
+	private static final int WIDTH = 600;
+	private static final int HEIGHT = 800;
+	private static final int SCROLL_STEP = 40;
+
+	@Param({ "100", "1000", "10000" })
+	int bubbles;
+
+	private MessageDisplayPanel panel;
+	private JScrollPane scrollPane;
+	private JViewport viewport;
+	private Graphics2D graphics;
+	private int y;
+	private boolean narrow;
+
+	@Setup
+	public void setUp() {
+		panel = new MessageDisplayPanel();
+		scrollPane = new JScrollPane(panel);
+		viewport = scrollPane.getViewport();
+		layOut(WIDTH);
+		for (int i = 0; i < bubbles; i++) {
+			String message = i % 5 == 0
+					? "message " + i + " runs on for a while so that it has to wrap onto a second and maybe a third line in the bubble"
+					: "message " + i + ", short one";
+			panel.addMessage(message, i % 2 == 0);
+		}
+		layOut(WIDTH);
+		graphics = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB).createGraphics();
+	}
+
+	@TearDown
+	public void tearDown() {
+		graphics.dispose();
+	}
+
+	// Without a native peer validate() does nothing, so lay the scroll pane out by hand
+	private void layOut(int width) {
+		scrollPane.setSize(width, HEIGHT);
+		scrollPane.doLayout();
+		viewport.doLayout();
+	}
+
+	@Benchmark
+	public void scroll() {
+		int bottom = panel.getHeight() - viewport.getExtentSize().height;
+		y = y + SCROLL_STEP > bottom ? 0 : y + SCROLL_STEP;
+		viewport.setViewPosition(new Point(0, y));
+		scrollPane.paint(graphics);
+	}
+
+	@Benchmark
+	public void resize() {
+		narrow = !narrow;
+		layOut(narrow ? WIDTH - 200 : WIDTH);
+		scrollPane.paint(graphics);
+	}
+}
@@ -0,0 +1,98 @@
+package Server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Account persistence at different account counts. The whole-map
+// saveUserAccounts()/loadUserAccounts() pair is gone; what replaced it is
+// opening the mapped index at startup (load), a lookup per login (get), and a
+// checkpoint that forces one changed account to disk (save).
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountStoreBenchmark {
+	@State(Scope.Benchmark)
+	public static class Accounts {
+		@Param({ "10000", "100000", "1000000" })
+		int accounts;
+
+		Path dir;
+		Path index;
+		Path rooms;
+		String[] names;
+
+		@Setup(Level.Trial)
+		public void populate() throws IOException {
+			dir = Files.createTempDirectory("account-bench");
+			index = dir.resolve("user_accounts.idx");
+			rooms = dir.resolve("user_accounts.rooms");
+			names = new String[accounts];
+			byte[] salt = new byte[16];
+			byte[] hash = new byte[32];
+			try (AccountStore store = AccountStore.open(index, rooms)) {
+				for (int i = 0; i < accounts; i++) {
+					names[i] = "user" + i;
+					store.create(names[i], salt, hash);
+				}
+				store.force();
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void delete() throws IOException {
+			try (Stream<Path> files = Files.walk(dir)) {
+				for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+					Files.delete(path);
+				}
+			}
+		}
+
+		String randomName() {
+			return names[ThreadLocalRandom.current().nextInt(names.length)];
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class OpenStore {
+		AccountStore store;
+
+		@Setup(Level.Trial)
+		public void open(Accounts accounts) throws IOException {
+			store = AccountStore.open(accounts.index, accounts.rooms);
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws IOException {
+			store.close();
+		}
+	}
+
+	@Benchmark
+	public int load(Accounts accounts) throws IOException {
+		try (AccountStore store = AccountStore.open(accounts.index, accounts.rooms)) {
+			return store.size();
+		}
+	}
+
+	@Benchmark
+	public AccountStore.Account get(Accounts accounts, OpenStore open) {
+		return open.store.get(accounts.randomName());
+	}
+
+	@Benchmark
+	public void save(Accounts accounts, OpenStore open) throws IOException {
+		String name = accounts.randomName();
+		open.store.loginFailed(name, Integer.MAX_VALUE, 0, 0);
+		open.store.loginSucceeded(name);
+		open.store.force();
+	}
+}
@@ -0,0 +1,60 @@
+package Server;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+// Heap allocated per ChatRoom.broadcast, for the old per-recipient format+encode
+// loop against the current encode-once fan-out. Recipients discard frames so only
+// the fan-out itself is measured.
+//
+//   java -cp target/benchmarks.jar Server.BroadcastAllocationBenchmark [members] [broadcasts]
+public class BroadcastAllocationBenchmark {
+	private static final String SENDER = "alice";
+	private static final String MESSAGE = "the quick brown fox jumps over the lazy dog, again and again";
+
+	public static void main(String[] args) {
+		int members = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int broadcasts = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		DiscardingConnection[] connections = new DiscardingConnection[members];
+		Server.ChatRoom room = null;
+		for (int i = 0; i < members; i++) {
+			connections[i] = new DiscardingConnection();
+			room = Server.ChatRoom.join("BENCH", new Server.ClientHandler(connections[i]));
+		}
+
+		// Warm up both paths before measuring
+		for (int i = 0; i < broadcasts; i++) {
+			perRecipientBroadcast(connections);
+			room.broadcast(SENDER, MESSAGE);
+		}
+
+		long before = allocatedBytes();
+		for (int i = 0; i < broadcasts; i++) {
+			perRecipientBroadcast(connections);
+		}
+		long perRecipient = (allocatedBytes() - before) / broadcasts;
+
+		before = allocatedBytes();
+		for (int i = 0; i < broadcasts; i++) {
+			room.broadcast(SENDER, MESSAGE);
+		}
+		long encodeOnce = (allocatedBytes() - before) / broadcasts;
+
+		System.out.printf("%d members, %d broadcasts%n", members, broadcasts);
+		System.out.printf("  per-recipient format+encode: %,12d bytes/broadcast%n", perRecipient);
+		System.out.printf("  encode-once fan-out:         %,12d bytes/broadcast%n", encodeOnce);
+	}
+
+	// What ChatRoom.broadcast used to do: one String.format and one UTF-8 encode per member
+	private static void perRecipientBroadcast(DiscardingConnection[] connections) {
+		for (DiscardingConnection connection : connections) {
+			String line = String.format("%s: %s", SENDER, MESSAGE) + "\n";
+			connection.sendFrame(line.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+	}
+}
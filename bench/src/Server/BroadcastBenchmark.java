@@ -0,0 +1,35 @@
+package Server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// ChatRoom.broadcast to in-memory members that discard what they are sent. No
+// message history is open here, so this is the fan-out alone.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class BroadcastBenchmark {
+	private static final String SENDER = "alice";
+	private static final String MESSAGE = "the quick brown fox jumps over the lazy dog, again and again";
+
+	@Param({ "10", "1000", "10000" })
+	int members;
+
+	private Server.ChatRoom room;
+
+	@Setup
+	public void setUp() {
+		for (int i = 0; i < members; i++) {
+			room = Server.ChatRoom.join("BENCH", new Server.ClientHandler(new DiscardingConnection()));
+		}
+	}
+
+	@Benchmark
+	public void broadcast() {
+		room.broadcast(SENDER, MESSAGE);
+	}
+}
@@ -0,0 +1,81 @@
+package Server;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Per-line input handling: the sanitizer every credential goes through, username
+// validation, and the tokenize/dispatch of a chat command. Each hand-written path
+// runs next to the regex code it replaced (the *Regex methods) so the two can be
+// compared directly; with the GC profiler, gc.alloc.rate.norm shows the garbage
+// per line. The processCommand commands target a room and a user that don't
+// exist, so only parsing and the lookups are measured there.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CommandParsingBenchmark {
+	@State(Scope.Thread)
+	public static class Input {
+		@Param({ "alice", "  alice.smith-1990\t\r" })
+		String input;
+	}
+
+	@State(Scope.Thread)
+	public static class Command {
+		@Param({ "MESSAGE NOROOM the quick brown fox jumps over the lazy dog", "PM nobody hello", "LEAVE NOROOM" })
+		String command;
+
+		Server.ClientHandler handler;
+		CommandLine commandLine;
+
+		@Setup
+		public void setUp() {
+			handler = new Server.ClientHandler(new DiscardingConnection());
+			commandLine = new CommandLine();
+		}
+	}
+
+	@Benchmark
+	public String sanitizeInput(Input input) {
+		return Server.sanitizeInput(input.input);
+	}
+
+	@Benchmark
+	public String sanitizeInputRegex(Input input) {
+		return input.input.replaceAll("[\\p{Cntrl}]", "").trim();
+	}
+
+	@Benchmark
+	public boolean validUsername(Input input) {
+		return CommandLine.isValidUsername(input.input, 3, 48);
+	}
+
+	@Benchmark
+	public boolean validUsernameRegex(Input input) {
+		return input.input.matches("^[a-zA-Z0-9._-]{3,48}$");
+	}
+
+	// Command word plus the two arguments every two-argument command reads
+	@Benchmark
+	public void parse(Command command, Blackhole blackhole) {
+		blackhole.consume(command.commandLine.reset(command.command));
+		blackhole.consume(command.commandLine.next());
+		blackhole.consume(command.commandLine.rest());
+	}
+
+	@Benchmark
+	public void parseRegex(Command command, Blackhole blackhole) {
+		String[] parts = command.command.split("\\s+", 3);
+		blackhole.consume(parts[0].toUpperCase());
+		blackhole.consume(parts.length >= 2 ? parts[1] : null);
+		blackhole.consume(parts.length >= 3 ? parts[2] : null);
+	}
+
+	@Benchmark
+	public void processCommand(Command command) {
+		command.handler.processCommand(command.command);
+	}
+}
@@ -0,0 +1,24 @@
+package Server;
+
+// A Connection that only counts what it is sent, so benchmarks measure the
+// server's work and not a socket's.
+final class DiscardingConnection implements Connection {
+	private final OutboundQueue outbound = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DROP_NEWEST);
+	long frames;
+	long bytes;
+
+	@Override
+	public void sendFrame(byte[] frame) {
+		frames++;
+		bytes += frame.length;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public OutboundQueue outbound() {
+		return outbound;
+	}
+}
@@ -0,0 +1,22 @@
+package Server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// One PBKDF2 hash at the server's iteration count; this is what a login costs
+// the auth pool.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class PasswordHashBenchmark {
+	private final byte[] salt = new byte[16];
+
+	@Benchmark
+	public String hashPassword() {
+		return Server.hashPassword("SecretPass123!", salt);
+	}
+}
@@ -0,0 +1,130 @@
+package Client;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Client half of the server's length-prefixed protocol (see Server.BinaryProtocol
+// for the frame layout). The builders return a frame body, opcode first; the
+// caller writes its length in front.
+final class BinaryProtocol {
+	static final String HELLO = "PROTOCOL BINARY 1";
+	static final String HELLO_OK = "PROTOCOL BINARY 1 OK";
+
+	static final int MAX_FRAME_BYTES = 64 * 1024;
+	// Largest string the unsigned short count in front of it can describe
+	static final int MAX_STRING_BYTES = 0xFFFF;
+
+	static final byte LOGIN = 0x01;
+	static final byte REGISTER = 0x02;
+	static final byte RESUME = 0x03;
+	static final byte CHAT_IDS = 0x04;
+	static final byte SESSIONS = 0x05;
+	static final byte MESSAGE = 0x10;
+	static final byte JOIN = 0x11;
+	static final byte LEAVE = 0x12;
+	static final byte PM = 0x13;
+	static final byte LOGOUT = 0x14;
+	static final byte HISTORY = 0x15;
+	static final byte SUBSCRIBE = 0x16;
+	static final byte PONG = 0x18;
+	static final byte INBOX_ACK = 0x19;
+
+	static final byte TEXT = (byte) 0x80;
+	static final byte ROOM = (byte) 0x81;
+	static final byte CHAT = (byte) 0x82;
+	static final byte PING = (byte) 0x83;
+
+	private BinaryProtocol() {
+	}
+
+	static byte[] credentials(boolean isRegistration, String username, String password) {
+		byte[] user = string(username);
+		byte[] pass = string(password);
+		return ByteBuffer.allocate(1 + 2 + user.length + 2 + pass.length)
+				.put(isRegistration ? REGISTER : LOGIN)
+				.putShort((short) user.length).put(user)
+				.putShort((short) pass.length).put(pass)
+				.array();
+	}
+
+	static byte[] resume(String token) {
+		byte[] bytes = string(token);
+		return ByteBuffer.allocate(1 + 2 + bytes.length).put(RESUME).putShort((short) bytes.length).put(bytes).array();
+	}
+
+	static byte[] chatIds() {
+		return new byte[] { CHAT_IDS };
+	}
+
+	static byte[] sessions() {
+		return new byte[] { SESSIONS };
+	}
+
+	static byte[] message(int roomId, String text) {
+		byte[] bytes = utf8(text);
+		return ByteBuffer.allocate(1 + 4 + bytes.length).put(MESSAGE).putInt(roomId).put(bytes).array();
+	}
+
+	static byte[] join(String room) {
+		byte[] name = string(room);
+		return ByteBuffer.allocate(1 + 2 + name.length).put(JOIN).putShort((short) name.length).put(name).array();
+	}
+
+	static byte[] leave(int roomId) {
+		return ByteBuffer.allocate(1 + 4).put(LEAVE).putInt(roomId).array();
+	}
+
+	static byte[] privateMessage(String recipient, String text) {
+		byte[] name = string(recipient);
+		byte[] bytes = utf8(text);
+		return ByteBuffer.allocate(1 + 2 + name.length + bytes.length)
+				.put(PM).putShort((short) name.length).put(name).put(bytes).array();
+	}
+
+	static byte[] logout() {
+		return new byte[] { LOGOUT };
+	}
+
+	static byte[] history(int roomId, long beforeId, int limit) {
+		return ByteBuffer.allocate(1 + 4 + 8 + 4).put(HISTORY).putInt(roomId).putLong(beforeId).putInt(limit).array();
+	}
+
+	static byte[] pong() {
+		return new byte[] { PONG };
+	}
+
+	static byte[] inboxAck(long id) {
+		return ByteBuffer.allocate(1 + 8).put(INBOX_ACK).putLong(id).array();
+	}
+
+	static byte[] subscribe(String username) {
+		byte[] name = string(username);
+		return ByteBuffer.allocate(1 + 2 + name.length).put(SUBSCRIBE).putShort((short) name.length).put(name).array();
+	}
+
+	static String readString(ByteBuffer frame) {
+		int length = Short.toUnsignedInt(frame.getShort());
+		String value = new String(frame.array(), frame.position(), length, StandardCharsets.UTF_8);
+		frame.position(frame.position() + length);
+		return value;
+	}
+
+	static String readRest(ByteBuffer frame) {
+		String value = new String(frame.array(), frame.position(), frame.remaining(), StandardCharsets.UTF_8);
+		frame.position(frame.limit());
+		return value;
+	}
+
+	// A length-prefixed string field; refused rather than letting its count wrap
+	private static byte[] string(String value) {
+		byte[] bytes = utf8(value);
+		if (bytes.length > MAX_STRING_BYTES) {
+			throw new IllegalArgumentException("String field of " + bytes.length + " bytes");
+		}
+		return bytes;
+	}
+
+	private static byte[] utf8(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+}
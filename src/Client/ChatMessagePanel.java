@@ -1,74 +1,121 @@
 package Client;
 
 import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
 import javax.swing.*;
 
 
 public class ChatMessagePanel extends JPanel {
-    private final String message;
-    private final boolean sentByMe;
+    private static final int PADDING = 15;
+
+    private String message;
+    private boolean sentByMe;
+    private Bubble bubble;
     private final Color SENT_COLOR = new Color(222, 141, 234);
     private final Color RECEIVED_COLOR = new Color(191, 163, 195);
 
+    // A message broken into lines for one width and font. Splitting and
+    // measuring words is the expensive part of drawing a bubble, so it is done
+    // once here and painting only draws the lines.
+    static final class Bubble {
+        final String message;
+        final Font font;
+        final int width;
+        final String[] lines;
+        final int lineHeight;
+        final int ascent;
+        final int bubbleWidth;
+        final int bubbleHeight;
+
+        Bubble(String message, Font font, FontMetrics fm, int width) {
+            this.message = message;
+            this.font = font;
+            this.width = width;
+            int maxWidth = width - 100;
+            int spaceWidth = fm.charWidth(' ');
+
+            List<String> wrapped = new ArrayList<>();
+            StringBuilder line = new StringBuilder();
+            int currentLineWidth = 0;
+            for (String word : message.split("\\s+")) {
+                int wordWidth = fm.stringWidth(word) + spaceWidth;
+                if (currentLineWidth + wordWidth > maxWidth && currentLineWidth > 0) {
+                    wrapped.add(line.toString());
+                    line.setLength(0);
+                    currentLineWidth = 0;
+                }
+                line.append(word).append(' ');
+                currentLineWidth += wordWidth;
+            }
+            wrapped.add(line.toString());
+
+            lines = wrapped.toArray(new String[0]);
+            lineHeight = fm.getHeight();
+            ascent = fm.getAscent();
+            bubbleWidth = Math.min(fm.stringWidth(message) + 2 * PADDING, maxWidth);
+            bubbleHeight = lines.length * lineHeight + PADDING;
+        }
+
+        // Height of the whole panel, bubble plus its margin
+        int height() {
+            return bubbleHeight + 10;
+        }
+    }
+
     public ChatMessagePanel(String message, boolean sentByMe) {
         this.message = message;
         this.sentByMe = sentByMe;
         setOpaque(false);
-        
+
         setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
     }
 
+    // MessageDisplayPanel paints every row through one instance, switching the message in
+    void setMessage(String message, boolean sentByMe) {
+        this.message = message;
+        this.sentByMe = sentByMe;
+        this.bubble = null;
+    }
+
+    // Same as setMessage, with the lines already worked out for the current width
+    void setBubble(Bubble bubble, boolean sentByMe) {
+        this.message = bubble.message;
+        this.sentByMe = sentByMe;
+        this.bubble = bubble;
+    }
+
+    // The message laid out for the current width and font, reusing the last
+    // layout if neither has changed
+    Bubble bubble() {
+        Font font = getFont();
+        int width = getWidth();
+        if (bubble == null || bubble.width != width || !bubble.font.equals(font)) {
+            bubble = new Bubble(message, font, getFontMetrics(font), width);
+        }
+        return bubble;
+    }
+
     @Override
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
+        Bubble bubble = bubble();
         Graphics2D g2 = (Graphics2D) g.create();
         g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
-        FontMetrics fm = g2.getFontMetrics();
-        int padding = 15;
-        int maxWidth = getWidth() - 100;
-
-        // Calculate wrapped text height
-        int lineHeight = fm.getHeight();
-        String[] words = message.split("\\s+");
-        int currentLineWidth = 0;
-        int totalHeight = lineHeight;
-
-        for (String word : words) {
-            int wordWidth = fm.stringWidth(word + " ");
-            if (currentLineWidth + wordWidth > maxWidth) {
-                totalHeight += lineHeight;
-                currentLineWidth = wordWidth;
-            } else {
-                currentLineWidth += wordWidth;
-            }
-        }
-
         // Draw bubble
-        int bubbleWidth = Math.min(fm.stringWidth(message) + 2 * padding, maxWidth);
-        int bubbleHeight = totalHeight + padding;
-
         g2.setColor(sentByMe ? SENT_COLOR : RECEIVED_COLOR);
-        int x = sentByMe ? getWidth() - bubbleWidth - 20 : 20;
+        int x = sentByMe ? getWidth() - bubble.bubbleWidth - 20 : 20;
         int y = 5;
-        g2.fillRoundRect(x, y, bubbleWidth, bubbleHeight, 20, 20);
+        g2.fillRoundRect(x, y, bubble.bubbleWidth, bubble.bubbleHeight, 20, 20);
 
         // Draw wrapped text
         g2.setColor(Color.BLACK);
-        int currentX = x + padding;
-        int currentY = y + fm.getAscent() + (padding / 2);
-        currentLineWidth = 0;
-
-        for (String word : words) {
-            int wordWidth = fm.stringWidth(word + " ");
-            if (currentLineWidth + wordWidth > maxWidth) {
-                currentY += lineHeight;
-                currentX = x + padding;
-                currentLineWidth = 0;
-            }
-            g2.drawString(word + " ", currentX, currentY);
-            currentX += wordWidth;
-            currentLineWidth += wordWidth;
+        g2.setFont(bubble.font);
+        int currentY = y + bubble.ascent + (PADDING / 2);
+        for (String line : bubble.lines) {
+            g2.drawString(line, x + PADDING, currentY);
+            currentY += bubble.lineHeight;
         }
 
         g2.dispose();
@@ -76,26 +123,6 @@ public class ChatMessagePanel extends JPanel {
 
     @Override
     public Dimension getPreferredSize() {
-        FontMetrics fm = getFontMetrics(getFont());
-        int maxWidth = getWidth() - 100;
-        int lineHeight = fm.getHeight();
-        int padding = 15;
-
-        // Calculate height based on word wrapping
-        String[] words = message.split("\\s+");
-        int currentLineWidth = 0;
-        int totalHeight = lineHeight;
-
-        for (String word : words) {
-            int wordWidth = fm.stringWidth(word + " ");
-            if (currentLineWidth + wordWidth > maxWidth) {
-                totalHeight += lineHeight;
-                currentLineWidth = wordWidth;
-            } else {
-                currentLineWidth += wordWidth;
-            }
-        }
-
-        return new Dimension(getWidth(), totalHeight + padding + 10);
+        return new Dimension(getWidth(), bubble().height());
     }
 }
\ No newline at end of file
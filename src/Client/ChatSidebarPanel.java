@@ -3,10 +3,13 @@ package Client;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+// Lists the users the server reports through presence updates, online or not
 public class ChatSidebarPanel extends JPanel {
-    private final ArrayList<FriendChatPanel> friendChats = new ArrayList<>();
+    private final Map<String, FriendChatPanel> friendChats = new LinkedHashMap<>();
+    private final JPanel friendsPanel;
 
     public ChatSidebarPanel() {
         setLayout(new BorderLayout());
@@ -16,16 +19,11 @@ public class ChatSidebarPanel extends JPanel {
         // Create header panel that will contain the username
         JPanel headerPanel = createHeaderPanel();
 
-        // Friends list
-        JPanel friendsPanel = new JPanel();
+        // Friends list, filled in by setPresence()
+        friendsPanel = new JPanel();
         friendsPanel.setLayout(new BoxLayout(friendsPanel, BoxLayout.Y_AXIS));
         friendsPanel.setBackground(new Color(178, 226, 215));
 
-        // Add sample friends
-        addFriend(friendsPanel, "Alice", true, "Hey there!");
-        addFriend(friendsPanel, "Bob", false, "See you tomorrow");
-        addFriend(friendsPanel, "Charlie", true, "Got it, thanks!");
-
         JScrollPane scrollPane = new JScrollPane(friendsPanel);
         scrollPane.setBorder(null);
         scrollPane.setBackground(new Color(178, 226, 215));
@@ -60,15 +58,28 @@ public class ChatSidebarPanel extends JPanel {
         return panel;
     }
 
-    private void addFriend(JPanel container, String name, boolean isOnline, String lastMessage) {
-        FriendChatPanel friendPanel = new FriendChatPanel(name, isOnline, lastMessage);
-        friendChats.add(friendPanel);
-        container.add(friendPanel);
+    // Event dispatch thread only
+    public void setPresence(String name, boolean isOnline) {
+        FriendChatPanel friendPanel = friendChats.get(name);
+        if (friendPanel == null) {
+            friendPanel = new FriendChatPanel(name, isOnline, statusText(isOnline));
+            friendChats.put(name, friendPanel);
+            friendsPanel.add(friendPanel);
+            friendsPanel.revalidate();
+        } else {
+            friendPanel.setOnline(isOnline, statusText(isOnline));
+        }
+    }
+
+    private static String statusText(boolean isOnline) {
+        return isOnline ? "Online" : "Offline";
     }
 }
 
 class FriendChatPanel extends JPanel {
     private boolean isOnline;
+    private final JPanel avatarPanel;
+    private final JLabel messageLabel;
 
     public FriendChatPanel(String name, boolean isOnline, String lastMessage) {
         this.isOnline = isOnline;
@@ -78,7 +89,7 @@ class FriendChatPanel extends JPanel {
         setCursor(new Cursor(Cursor.HAND_CURSOR));
 
         // Avatar panel with status indicator
-        JPanel avatarPanel = new JPanel() {
+        avatarPanel = new JPanel() {
             @Override
             protected void paintComponent(Graphics g) {
                 super.paintComponent(g);
@@ -114,7 +125,7 @@ class FriendChatPanel extends JPanel {
         nameLabel.setFont(new Font("Arial", Font.BOLD, 14));
         nameLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
 
-        JLabel messageLabel = new JLabel(lastMessage);
+        messageLabel = new JLabel(lastMessage);
         messageLabel.setFont(new Font("Arial", Font.PLAIN, 12));
         messageLabel.setForeground(Color.GRAY);
         messageLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
@@ -142,6 +153,12 @@ class FriendChatPanel extends JPanel {
         });
     }
 
+    public void setOnline(boolean isOnline, String lastMessage) {
+        this.isOnline = isOnline;
+        messageLabel.setText(lastMessage);
+        avatarPanel.repaint();
+    }
+
     // Now these overrides are correctly outside the constructor
     @Override
     public Dimension getPreferredSize() {
@@ -1,102 +1,469 @@
 package Client;
 
 import javax.swing.*;
-import java.io.*;
-import java.net.*;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class Client {
+	private static final Logger LOGGER = Logger.getLogger(Client.class.getName());
 	private static final String HOST = "10.8.49.161";
 	private static final int PORT = 5000;
-	private Socket socket;
-	private BufferedReader serverInput;
-	private PrintWriter serverOutput;
+	// Opt in with -Dchat.binary=true; falls back to text if the server says no
+	private static final boolean USE_BINARY_PROTOCOL = Boolean.getBoolean("chat.binary");
+	// How long one pass over the inbound queue may hold the event dispatch
+	// thread before it lets a repaint through
+	private static final long DRAIN_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(8);
+	private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+	// Reconnect delays are random up to a ceiling that doubles from the base to
+	// the max with each failed attempt
+	private static final long RECONNECT_BASE_MILLIS = 500;
+	private static final long RECONNECT_MAX_MILLIS = 30_000;
+	// Largest HISTORY page the server hands out
+	private static final int HISTORY_PAGE = 200;
+	private static final String SIGNED_IN_ELSEWHERE = "SERVER: Signed in from another session.";
+	private volatile ServerConnection connection;
+	private final Map<String, Integer> roomIds = new ConcurrentHashMap<>();
 	private final ClientDisplay display;
 	private volatile boolean isRunning = true;
 	private String currentRoom = "GENERAL";
-	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+	private volatile String username;
+	private volatile boolean signedIn;
+	// From the server's SESSION line; lets a reconnect resume instead of logging in
+	private volatile String resumeToken;
+	private volatile boolean reconnecting;
+	private final AtomicInteger reconnectAttempts = new AtomicInteger();
+	private final ScheduledExecutorService reconnects = Executors.newSingleThreadScheduledExecutor(
+			Thread.ofPlatform().name("chat-reconnect").daemon().factory());
+	// Event dispatch thread only: which messages of each room have been shown,
+	// the rooms being caught up after logging in again, and HISTORY requests
+	// waiting for their room's id (binary protocol)
+	private final Map<String, Seen> seen = new HashMap<>();
+	private final Map<String, Resync> resyncs = new HashMap<>();
+	private final Map<String, Long> historyWaiting = new HashMap<>();
+	// Id of the newest offline message shown, acked when its batch ends
+	private long lastInboxId;
+	// Lines from the receiver waiting for the event dispatch thread, which takes
+	// them in batches; drainScheduled is set while a drain is queued or running
+	private final Queue<String> inbound = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+	// The ids of a room's messages shown so far: every one up to contiguous, and
+	// those in above. Two messages sent at once can arrive in either order, so
+	// the newest id alone would not do. A message missing for good (lost from
+	// history) is given up on once MAX_ABOVE newer ones have been shown.
+	private static final class Seen {
+		private static final int MAX_ABOVE = 1024;
+		private long contiguous;
+		private final TreeSet<Long> above = new TreeSet<>();
+
+		// Anything older than the first message seen in a room was before our time
+		Seen(long firstId) {
+			contiguous = firstId - 1;
+		}
+
+		boolean contains(long id) {
+			return id <= contiguous || above.contains(id);
+		}
+
+		void add(long id) {
+			if (id > contiguous) {
+				above.add(id);
+				advance();
+			}
+		}
+
+		// Every id up to this one has been shown or is not in history
+		void resolvedUpTo(long id) {
+			if (id > contiguous) {
+				contiguous = id;
+				above.headSet(id, true).clear();
+				advance();
+			}
+		}
+
+		private void advance() {
+			while (!above.isEmpty() && (above.first() == contiguous + 1 || above.size() > MAX_ABOVE)) {
+				contiguous = above.pollFirst();
+			}
+		}
+	}
+
+	// A room's messages from while we were away, fetched a page at a time from
+	// the newest back to the oldest one not yet shown. Chat for the room that
+	// comes in meanwhile waits here too, so the transcript stays in order.
+	private static final class Resync {
+		final TreeMap<Long, String> messages = new TreeMap<>();
+		// Range of ids fetched so far; 0 until the first page arrives
+		long oldestFetched;
+		long newestFetched;
+	}
 
 	public Client(ClientDisplay display) {
 		this.display = display;
-		setupNetworking();
-		if (socket != null && socket.isConnected()) {
-			startMessageReceiver();
-		}
+		connectOrShowError();
 	}
 
-	private void setupNetworking() {
-		try {
-			socket = new Socket(HOST, PORT);
-			serverInput = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			serverOutput = new PrintWriter(socket.getOutputStream(), true);
-		} catch (IOException e) {
+	private void connectOrShowError() {
+		connect().exceptionally(e -> {
+			Throwable cause = e instanceof CompletionException ? e.getCause() : e;
 			SwingUtilities.invokeLater(() ->
-					display.showError("Could not connect to server: " + e.getMessage())
+					display.showError("Could not connect to server: " + cause.getMessage())
 			);
-			shutdown(); // Ensure resources are cleaned up
+			return null;
+		});
+	}
+
+	// Replaces the connection and returns at once; the socket is opened on the
+	// connection's own thread, and anything sent meanwhile waits for it
+	private CompletableFuture<Void> connect() {
+		ServerConnection connection = new ServerConnection(HOST, PORT, CONNECT_TIMEOUT_MILLIS, USE_BINARY_PROTOCOL,
+				new ServerConnection.Listener() {
+					@Override
+					public void onMessage(String message) {
+						// Checked here rather than on the event dispatch thread so
+						// that it is seen before the disconnect that follows it
+						if (message.equals(SIGNED_IN_ELSEWHERE)) {
+							signedIn = false;
+						}
+						deliver(message);
+					}
+
+					@Override
+					public void onRoom(String room, int roomId) {
+						roomIds.put(room, roomId);
+						SwingUtilities.invokeLater(() -> roomIdKnown(room));
+					}
+
+					@Override
+					public void onDisconnect(IOException cause) {
+						if (!isRunning) return;
+						if (signedIn) {
+							if (!reconnecting) {
+								reconnecting = true;
+								display.appendMessage("Connection lost, reconnecting...", false);
+							}
+							scheduleReconnect();
+						} else {
+							SwingUtilities.invokeLater(() ->
+									display.showError("Lost connection to server")
+							);
+						}
+					}
+				});
+		this.connection = connection;
+		CompletableFuture<Void> connected = connection.connect();
+		// Chat then carries the message ids that catching up relies on
+		connection.send("CHAT_IDS", BinaryProtocol.chatIds());
+		// Asks for a resume token at login, and on text for PINGs (which the
+		// binary protocol always sends)
+		connection.send("SESSIONS", BinaryProtocol.sessions());
+		connection.send("HEARTBEAT", null);
+		return connected;
+	}
+
+	// Full jitter: a random delay anywhere up to the ceiling, so clients cut off
+	// together by a server restart come back spread out instead of all at once
+	private void scheduleReconnect() {
+		if (!isRunning) return;
+		int attempt = reconnectAttempts.getAndIncrement();
+		long ceiling = Math.min(RECONNECT_MAX_MILLIS, RECONNECT_BASE_MILLIS << Math.min(attempt, 16));
+		long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+		try {
+			reconnects.schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+		}
+	}
+
+	// On the reconnect thread. Resuming gets back the same session, with the
+	// server replaying whatever arrived meanwhile. The password is not kept, so
+	// if there is no session to resume (the server keeps none, or it has expired
+	// and the server answers "Resume failed.") the user is asked to log in again.
+	private void reconnect() {
+		if (!isRunning || !signedIn) return;
+		String token = resumeToken;
+		if (token == null) {
+			SwingUtilities.invokeLater(this::askToLogIn);
+			return;
 		}
+		connect().exceptionally(e -> {
+			scheduleReconnect();
+			return null;
+		});
+		connection.send("RESUME " + token, BinaryProtocol.resume(token));
+	}
+
+	// Called on the event dispatch thread. Rooms caught up halfway start over
+	// once logged in.
+	private void askToLogIn() {
+		reconnecting = false;
+		signedIn = false;
+		// A resumed session keeps its room ids; a new one is sent fresh ones
+		roomIds.clear();
+		resyncs.clear();
+		historyWaiting.clear();
+		display.appendMessage("Could not resume the session; please log in again.", false);
+		display.showPage("LOGIN");
 	}
 
-	private void startMessageReceiver() {
-		executor.execute(() -> {
+	// Called on the event dispatch thread once a reconnect has resumed
+	private void reconnected() {
+		reconnectAttempts.set(0);
+		if (reconnecting) {
+			reconnecting = false;
+			display.appendMessage("Reconnected.", false);
+		}
+		// The request may have gone down with the old connection; a page that
+		// comes twice does no harm
+		for (Map.Entry<String, Resync> entry : resyncs.entrySet()) {
+			requestHistory(entry.getKey(), entry.getValue().oldestFetched);
+		}
+	}
+
+	// Called on the receiver thread. Only the first line of a burst posts to the
+	// event dispatch thread; the rest are picked up by the same drain.
+	private void deliver(String message) {
+		inbound.add(message);
+		if (drainScheduled.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(this::drainInbound);
+		}
+	}
+
+	// Handles queued lines until the queue is empty or the budget is spent; in
+	// the second case it goes to the back of the event queue so the display can
+	// paint what it has so far.
+	private void drainInbound() {
+		long deadline = System.nanoTime() + DRAIN_BUDGET_NANOS;
+		String message;
+		while ((message = inbound.poll()) != null) {
 			try {
-				String message;
-				while (isRunning && (message = serverInput.readLine()) != null) {
-					final String finalMessage = message;
-					SwingUtilities.invokeLater(() -> processServerMessage(finalMessage));
-				}
-			} catch (IOException e) {
-				if (isRunning) {
-					SwingUtilities.invokeLater(() ->
-							display.showError("Lost connection to server")
-					);
-				}
+				processServerMessage(message);
+			} catch (RuntimeException e) {
+				// One bad line must not leave drainScheduled set and the window deaf
+				LOGGER.log(Level.WARNING, "Could not handle server line: " + message, e);
 			}
-		});
+			if (System.nanoTime() - deadline > 0) {
+				SwingUtilities.invokeLater(this::drainInbound);
+				return;
+			}
+		}
+		drainScheduled.set(false);
+		// A line added after the last poll but before the flag was cleared
+		if (!inbound.isEmpty() && drainScheduled.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(this::drainInbound);
+		}
 	}
 
+	// Called on the event dispatch thread
 	private void processServerMessage(String message) {
+		if (message.equals("PRESENCE") || message.startsWith("PRESENCE ")) {
+			updatePresence(message);
+			return;
+		}
+		if (message.startsWith("SESSION ")) {
+			resumeToken = message.substring("SESSION ".length());
+			return;
+		}
+		if (message.startsWith("INBOX ") || message.startsWith("INBOX_END ")) {
+			showOfflineMessage(message);
+			return;
+		}
+		if (message.equals("Resume successful!")) {
+			reconnected();
+			return;
+		}
+		if (message.equals("Resume failed.")) {
+			resumeToken = null;
+			askToLogIn();
+			return;
+		}
+		if (message.startsWith("CHAT ")) {
+			showChat(message);
+			return;
+		}
+		if (message.startsWith("HISTORY")) {
+			resyncPage(message);
+			return;
+		}
 		boolean sentByMe = message.startsWith(display.getName());
-		SwingUtilities.invokeLater(() -> {
-			if (message.contains("Login successful")) {
-				display.showPage("MAIN");
-				//display.appendMessage("\u001B[32m" + message + "\u001B[0m", sentByMe);
-			} else if (message.contains("Registration successful")) {
-				display.showPage("LOGIN");
-				display.appendMessage("\u001B[32m" + message + "\u001B[0m", sentByMe);
-			} else if (message.contains("Login failed") || message.contains("Registration failed")) {
-				display.appendMessage("\u001B[31m" + message + "\u001B[0m", sentByMe);
+		if (message.contains("Login successful")) {
+			signedIn = true;
+			reconnectAttempts.set(0);
+			display.showPage("MAIN");
+			// Entered without a "Joined room" line
+			startResync("GENERAL");
+			subscribePresence();
+			//display.appendMessage("\u001B[32m" + message + "\u001B[0m", sentByMe);
+		} else if (message.contains("Registration successful")) {
+			display.showPage("LOGIN");
+			display.appendMessage("\u001B[32m" + message + "\u001B[0m", sentByMe);
+		} else if (message.contains("Login failed") || message.contains("Registration failed")) {
+			display.appendMessage("\u001B[31m" + message + "\u001B[0m", sentByMe);
+		} else {
+			if (message.startsWith("SERVER: Joined room: ")) {
+				startResync(message.substring("SERVER: Joined room: ".length()));
+			}
+			display.appendMessage(message, sentByMe);
+		}
+
+		//display.appendMessage(message, sentByMe);
+	}
+
+	// "CHAT <room> <id> <sender>: <message>", live or the backfill of a room
+	// just joined; a message already shown is dropped
+	private void showChat(String message) {
+		String[] parts = message.split(" ", 4);
+		if (parts.length < 4) return;
+		String room = parts[1];
+		long id = Long.parseLong(parts[2]);
+		Resync resync = resyncs.get(room);
+		if (resync != null) {
+			resync.messages.put(id, parts[3]);
+			return;
+		}
+		Seen shown = seen.computeIfAbsent(room, key -> new Seen(id));
+		if (shown.contains(id)) return;
+		shown.add(id);
+		display.appendMessage(parts[3], parts[3].startsWith(display.getName()));
+	}
+
+	// On logging in again, each room the server puts us back in, GENERAL
+	// included, is caught up on what it got while we were away. They all share
+	// the one transcript; a room never shown before just has its backfill.
+	private void startResync(String room) {
+		if (!seen.containsKey(room) || resyncs.containsKey(room)) return;
+		resyncs.put(room, new Resync());
+		requestHistory(room, 0);
+	}
+
+	// A page of up to HISTORY_PAGE messages before beforeId, or the newest if 0.
+	// Binary HISTORY names the room by id, which may not have arrived yet.
+	private void requestHistory(String room, long beforeId) {
+		Integer roomId = roomIds.get(room);
+		if (roomId == null && connection.isBinary()) {
+			historyWaiting.put(room, beforeId);
+			return;
+		}
+		connection.send("HISTORY " + room + " " + beforeId + " " + HISTORY_PAGE,
+				roomId == null ? null : BinaryProtocol.history(roomId, beforeId, HISTORY_PAGE));
+	}
+
+	// Called on the event dispatch thread after a ROOM frame
+	private void roomIdKnown(String room) {
+		Long beforeId = historyWaiting.remove(room);
+		if (beforeId != null) {
+			requestHistory(room, beforeId);
+		}
+	}
+
+	// "HISTORY <room> <id> <epochMillis> <sender>: <message>" for each message of
+	// a page, oldest first, then "HISTORY_END <room> <count>". Pages are asked
+	// for until one reaches what was already shown or history runs out; then
+	// everything not yet shown goes on screen in id order.
+	private void resyncPage(String message) {
+		String[] parts = message.split(" ", 5);
+		Resync resync = parts.length > 2 ? resyncs.get(parts[1]) : null;
+		if (resync == null) return;
+		String room = parts[1];
+		Seen shown = seen.get(room);
+		if (parts[0].equals("HISTORY_END")) {
+			if (parts[2].equals("0") || resync.oldestFetched <= shown.contiguous + 1) {
+				finishResync(room, resync, shown);
 			} else {
-				display.appendMessage(message, sentByMe);
+				requestHistory(room, resync.oldestFetched);
 			}
+		} else if (parts[0].equals("HISTORY") && parts.length == 5) {
+			long id = Long.parseLong(parts[2]);
+			resync.oldestFetched = resync.oldestFetched == 0 ? id : Math.min(resync.oldestFetched, id);
+			resync.newestFetched = Math.max(resync.newestFetched, id);
+			resync.messages.put(id, parts[4]);
+		}
+	}
 
-			//display.appendMessage(message, sentByMe);
-		});
+	private void finishResync(String room, Resync resync, Seen shown) {
+		resyncs.remove(room);
+		for (Map.Entry<Long, String> entry : resync.messages.entrySet()) {
+			if (shown.contains(entry.getKey())) continue;
+			shown.add(entry.getKey());
+			display.appendMessage(entry.getValue(), entry.getValue().startsWith(display.getName()));
+		}
+		// The pages ran unbroken up to the newest message when they were read
+		shown.resolvedUpTo(resync.newestFetched);
+	}
+
+	// "PRESENCE +alice -bob ..." from the server; called on the event dispatch thread
+	private void updatePresence(String message) {
+		for (String entry : message.substring("PRESENCE".length()).trim().split(" ")) {
+			if (entry.length() < 2 || entry.substring(1).equals(username)) continue;
+			display.updatePresence(entry.substring(1), entry.charAt(0) == '+');
+		}
+	}
 
+	// "INBOX <id> <epochMillis> <sender>: <text>" for each PM sent while we were
+	// away, then "INBOX_END <count> <waiting>", which the server wants acked
+	// before it sends the next batch. Called on the event dispatch thread.
+	private void showOfflineMessage(String message) {
+		String[] parts = message.split(" ", 4);
+		if (parts[0].equals("INBOX_END")) {
+			connection.send("INBOX_ACK " + lastInboxId, BinaryProtocol.inboxAck(lastInboxId));
+		} else if (parts.length == 4) {
+			try {
+				lastInboxId = Long.parseLong(parts[1]);
+			} catch (NumberFormatException e) {
+				display.appendMessage(message, false);
+				return;
+			}
+			display.appendMessage("[PM] " + parts[3], false);
+		}
+	}
+
+	// Everyone on the server, for the sidebar
+	private void subscribePresence() {
+		connection.send("SUBSCRIBE *", BinaryProtocol.subscribe("*"));
 	}
 
 	public void sendMessage(String text) {
 	    if (text.startsWith("/")) {
 //	        handleCommand(text);
 	    } else {
-	        serverOutput.println("MESSAGE " + currentRoom + " " + text);
+	        if (connection.isClosed()) {
+	            display.appendMessage("Not connected; message not sent.", false);
+	            return;
+	        }
+	        // The room id is only known once the server has sent it (binary protocol)
+	        Integer roomId = roomIds.get(currentRoom);
+	        connection.send("MESSAGE " + currentRoom + " " + text,
+	                roomId == null ? null : BinaryProtocol.message(roomId, text));
 	    }
 	}
 
 	public void authenticate(String username, String password, boolean isRegistration) {
-		if (socket == null || !socket.isConnected()) {
-			setupNetworking();
+		if (connection.isClosed()) {
+			connectOrShowError();
 		}
 
 		try {
-			// Send authentication type
-			serverOutput.println(isRegistration ? "2" : "1");
-			// Send credentials
-			serverOutput.println(username);
-			serverOutput.println(password);
+			// Queued behind the connect if it is still under way. In text the
+			// authentication type, then the credentials, one per line.
+			connection.send(String.join("\n", isRegistration ? "2" : "1", username, password),
+					BinaryProtocol.credentials(isRegistration, username, password));
 
 			// Store username for later use
 			if (!isRegistration) {
+				if (!username.equals(this.username)) {
+					// What another account has seen says nothing about this one
+					seen.clear();
+				}
+				this.username = username;
 				display.setName(username);
 			}
 
@@ -119,52 +486,41 @@ public class Client {
 	}*/
 
 	private void handleExit() {
-		serverOutput.println("LOGOUT");
-		shutdown();
-		System.exit(0);
+		shutdown().whenComplete((ignored, e) -> System.exit(0));
 	}
 
 	private void handleJoin(String[] parts) {
 		if (parts.length >= 2) {
 			currentRoom = parts[1].toUpperCase();
-			serverOutput.println("JOIN " + currentRoom);
+			connection.send("JOIN " + currentRoom, BinaryProtocol.join(currentRoom));
 		}
 	}
 
 	private void handlePrivateMessage(String[] parts) {
 		if (parts.length >= 3) {
-			serverOutput.println("PM " + parts[1] + " " + parts[2]);
+			connection.send("PM " + parts[1] + " " + parts[2], BinaryProtocol.privateMessage(parts[1], parts[2]));
 		}
 	}
 
 	private void handleLeave() {
 		if (!currentRoom.equals("GENERAL")) {
-			serverOutput.println("LEAVE " + currentRoom);
+			Integer roomId = roomIds.get(currentRoom);
+			connection.send("LEAVE " + currentRoom, roomId == null ? null : BinaryProtocol.leave(roomId));
 			currentRoom = "GENERAL";
 		}
 	}
 
-	public void shutdown() {
+	private void sendLogout() {
+		connection.send("LOGOUT", BinaryProtocol.logout());
+	}
+
+	// Logs out and closes once what is already queued has been sent; completes
+	// when the socket is closed, or after five seconds if the server is stuck
+	public CompletableFuture<Void> shutdown() {
 		isRunning = false;
-		executor.shutdownNow();
-		try {
-			if (socket != null && !socket.isClosed()) {
-				serverOutput.println("LOGOUT");
-				socket.close();
-			}
-		} catch (IOException e) {
-			SwingUtilities.invokeLater(() ->
-					display.showError("Error during shutdown: " + e.getMessage())
-			);
-		} finally {
-			if (!executor.isTerminated()) {
-				try {
-					executor.awaitTermination(5, TimeUnit.SECONDS);
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
-				}
-			}
-		}
+		reconnects.shutdownNow();
+		sendLogout();
+		return connection.close().completeOnTimeout(null, 5, TimeUnit.SECONDS);
 	}
 	
 	public static void main(String[] args) {
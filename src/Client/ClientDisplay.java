@@ -16,6 +16,7 @@ public class ClientDisplay extends JFrame {
 	private final LoginPage loginPage;
 	private final RegisterPage registerPage;
 	private final JPanel mainPanel;
+	private ChatSidebarPanel sidebarPanel;
 	private JTextField messageText;
 	private final JLabel nameLabel;
 	private File selectedFile;
@@ -64,7 +65,7 @@ public class ClientDisplay extends JFrame {
 		topPanel.setBorder(BorderFactory.createMatteBorder(0, 0, 3, 0, new Color(115, 173, 160)));
 
 		// Left sidebar
-		ChatSidebarPanel sidebarPanel = new ChatSidebarPanel();
+		sidebarPanel = new ChatSidebarPanel();
 
     
 
@@ -394,14 +395,19 @@ public class ClientDisplay extends JFrame {
 	}
 
 	public void appendMessage(String message, boolean sentByMe) {
-
+        if (SwingUtilities.isEventDispatchThread()) {
+            messageDisplay.addMessage(message, sentByMe);
+            return;
+        }
         SwingUtilities.invokeLater(() -> {
             messageDisplay.addMessage(message, sentByMe);
-            messageDisplay.revalidate();
-            messageDisplay.repaint();
         });
     }
 
+	public void updatePresence(String name, boolean isOnline) {
+		sidebarPanel.setPresence(name, isOnline);
+	}
+
 	public void showError(String message) {
 		JOptionPane.showMessageDialog(this, message, "Error", JOptionPane.ERROR_MESSAGE);
 	}
@@ -1,38 +1,200 @@
 package Client;
 
 import java.awt.Color;
+import java.awt.Container;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Insets;
+import java.awt.Rectangle;
 import javax.swing.BorderFactory;
-import javax.swing.Box;
-import javax.swing.BoxLayout;
+import javax.swing.CellRendererPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
 import javax.swing.JViewport;
+import javax.swing.Scrollable;
+import javax.swing.SwingUtilities;
+
+// The chat transcript, drawn straight from a message model rather than built
+// from one component per message. Only rows that intersect the visible area
+// are painted, all through a single ChatMessagePanel used as a rubber stamp,
+// the way JList uses its cell renderer. Each row's line breaks depend on the
+// width and font, so they are worked out once per width and font and kept,
+// along with a running total of the row heights; appending lays out just the
+// new row, and the first visible row is found by binary search. Past
+// MAX_MESSAGES the oldest messages are dropped.
+public class MessageDisplayPanel extends JPanel implements Scrollable {
+    private static final int MAX_MESSAGES = 10_000;
+    // Space below each bubble, as the vertical strut between panels used to give
+    private static final int GAP = 5;
+
+    // Ring buffer: row i lives at (head + i) % MAX_MESSAGES
+    private final String[] messages = new String[MAX_MESSAGES];
+    private final boolean[] sentByMe = new boolean[MAX_MESSAGES];
+    private final ChatMessagePanel.Bubble[] bubbles = new ChatMessagePanel.Bubble[MAX_MESSAGES];
+    // Bottom edge of each row from an origin that moves as rows are dropped;
+    // only valid for rows below measured
+    private final long[] bottoms = new long[MAX_MESSAGES];
+    private long top;
+    private int head;
+    private int count;
+    private int measured;
+    private int measuredWidth = -1;
+    private Font measuredFont;
+    private boolean scrollPending;
+
+    private final ChatMessagePanel renderer = new ChatMessagePanel("", false);
+    private final CellRendererPane rendererPane = new CellRendererPane();
 
-public class MessageDisplayPanel extends JPanel {
     public MessageDisplayPanel() {
-        setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+        setLayout(null);
         setBackground(Color.WHITE);
         setOpaque(true);
         setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        add(rendererPane);
+        rendererPane.add(renderer);
     }
-    
+
     public void addMessage(String message, boolean sentByMe) {
-        ChatMessagePanel messagePanel = new ChatMessagePanel(message, sentByMe);
-        add(messagePanel);
-        add(Box.createVerticalStrut(5));
-        messagePanel.setAlignmentX(sentByMe ? RIGHT_ALIGNMENT : LEFT_ALIGNMENT);
-        
+        if (count == MAX_MESSAGES) {
+            top = bottom(0);
+            messages[head] = null;
+            bubbles[head] = null;
+            head = (head + 1) % MAX_MESSAGES;
+            count--;
+            measured--;
+        }
+        int slot = slot(count);
+        messages[slot] = message;
+        this.sentByMe[slot] = sentByMe;
+        count++;
+        measure();
+
+        // All three coalesce, so a burst of messages costs one layout, one
+        // paint and one scroll
         revalidate();
         repaint();
-        scrollToBottom();
+        if (!scrollPending) {
+            scrollPending = true;
+            SwingUtilities.invokeLater(this::scrollToBottom);
+        }
+    }
+
+    private int slot(int row) {
+        return (head + row) % MAX_MESSAGES;
+    }
+
+    private long bottom(int row) {
+        return bottoms[slot(row)];
+    }
+
+    private int rowTop(int row) {
+        return (int) ((row == 0 ? top : bottom(row - 1)) - top);
+    }
+
+    // Width the rows are laid out in; the viewport's, since this panel tracks it
+    private int contentWidth() {
+        Container parent = getParent();
+        int width = parent instanceof JViewport ? parent.getWidth() : getWidth();
+        Insets insets = getInsets();
+        return Math.max(0, width - insets.left - insets.right);
     }
-    
+
+    // Brings the row layouts up to date: all of them after a width or font
+    // change, otherwise only rows appended since the last call
+    private void measure() {
+        int width = contentWidth();
+        Font font = renderer.getFont();
+        if (width != measuredWidth || !font.equals(measuredFont)) {
+            measuredWidth = width;
+            measuredFont = font;
+            measured = 0;
+        }
+        renderer.setSize(width, 0);
+        for (; measured < count; measured++) {
+            int slot = slot(measured);
+            renderer.setMessage(messages[slot], sentByMe[slot]);
+            bubbles[slot] = renderer.bubble();
+            long previous = measured == 0 ? top : bottom(measured - 1);
+            bottoms[slot] = previous + bubbles[slot].height() + GAP;
+        }
+    }
+
+    // First row whose bottom is below y
+    private int rowAt(int y) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (bottom(mid) - top <= y) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        measure();
+        Insets insets = getInsets();
+        int height = count == 0 ? 0 : (int) (bottom(count - 1) - top);
+        return new Dimension(measuredWidth + insets.left + insets.right, height + insets.top + insets.bottom);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        measure();
+        Rectangle clip = g.getClipBounds();
+        Insets insets = getInsets();
+        int clipBottom = clip.y + clip.height;
+        for (int row = rowAt(clip.y - insets.top); row < count; row++) {
+            int y = insets.top + rowTop(row);
+            if (y >= clipBottom) break;
+            int slot = slot(row);
+            renderer.setBubble(bubbles[slot], sentByMe[slot]);
+            rendererPane.paintComponent(g, renderer, this, insets.left, y, measuredWidth, bubbles[slot].height(), true);
+        }
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return 16;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return Math.max(visibleRect.height - 16, 16);
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    // Fills the viewport while there are too few messages to scroll
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        Container parent = getParent();
+        return parent instanceof JViewport && parent.getHeight() > getPreferredSize().height;
+    }
+
     private void scrollToBottom() {
+        scrollPending = false;
         if (getParent() instanceof JViewport) {
             JViewport viewport = (JViewport) getParent();
             if (viewport.getParent() instanceof JScrollPane) {
                 JScrollPane scrollPane = (JScrollPane) viewport.getParent();
+                // In case the revalidate has not been carried out yet
+                scrollPane.validate();
                 JScrollBar verticalBar = scrollPane.getVerticalScrollBar();
                 verticalBar.setValue(verticalBar.getMaximum());
             }
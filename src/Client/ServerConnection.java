@@ -0,0 +1,235 @@
+package Client;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// The client's end of the socket, kept off the event dispatch thread. Connecting
+// and every write run in order on one I/O thread, whose task queue is the
+// outbound send queue, so a slow or unreachable server backs that queue up
+// instead of freezing the UI; a second thread reads. Callers hear back through
+// the future from connect() and through the Listener, on those two threads.
+//
+// Single use: once closed or failed, make a new one to reconnect.
+final class ServerConnection {
+	interface Listener {
+		// A line from the server, or the text of a TEXT or CHAT frame
+		void onMessage(String message);
+
+		// Binary protocol only: the id the server gave a room
+		void onRoom(String room, int roomId);
+
+		// An open connection failed or the server closed it; not called after close()
+		void onDisconnect(IOException cause);
+	}
+
+	private final String host;
+	private final int port;
+	private final int connectTimeoutMillis;
+	private final boolean tryBinary;
+	private final Listener listener;
+	private final ExecutorService io = Executors.newSingleThreadExecutor(
+			Thread.ofPlatform().name("chat-io").daemon().factory());
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private volatile Socket socket;
+	// Decided by open() before anything is written or read
+	private volatile boolean binary;
+	private BufferedReader textInput;
+	private Writer textOutput;
+	private DataInputStream frameInput;
+	private DataOutputStream frameOutput;
+
+	ServerConnection(String host, int port, int connectTimeoutMillis, boolean tryBinary, Listener listener) {
+		this.host = host;
+		this.port = port;
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.tryBinary = tryBinary;
+		this.listener = listener;
+	}
+
+	// Fails with the IOException if the server can't be reached in time, after
+	// which the connection is closed
+	CompletableFuture<Void> connect() {
+		return CompletableFuture.runAsync(() -> {
+			try {
+				open();
+			} catch (IOException e) {
+				closed.set(true);
+				closeSocket();
+				io.shutdown();
+				throw new CompletionException(e);
+			}
+		}, io);
+	}
+
+	boolean isClosed() {
+		return closed.get();
+	}
+
+	// Whether the server agreed to frames; only meaningful once connected
+	boolean isBinary() {
+		return binary;
+	}
+
+	// Queues whichever of line and frame suits the protocol the server agreed
+	// to; null means there is nothing to send in that protocol. Dropped if the
+	// connection is closed by the time its turn comes.
+	void send(String line, byte[] frame) {
+		if (closed.get()) return;
+		try {
+			io.execute(() -> write(line, frame));
+		} catch (RejectedExecutionException e) {
+			// Closed in the meantime
+		}
+	}
+
+	// Sends what is already queued, then closes; the future completes once the
+	// socket is closed
+	CompletableFuture<Void> close() {
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		try {
+			io.execute(() -> {
+				closed.set(true);
+				closeSocket();
+				done.complete(null);
+			});
+			io.shutdown();
+		} catch (RejectedExecutionException e) {
+			done.complete(null);
+		}
+		return done;
+	}
+
+	private void open() throws IOException {
+		Socket socket = new Socket();
+		this.socket = socket;
+		socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+		// A server that accepts but never answers the hello counts as unreachable
+		socket.setSoTimeout(connectTimeoutMillis);
+		if (tryBinary && negotiateBinary(socket)) {
+			frameInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			frameOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			binary = true;
+		} else {
+			textInput = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			textOutput = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+		}
+		socket.setSoTimeout(0);
+		Thread.ofPlatform().name("chat-reader").daemon().start(this::receive);
+	}
+
+	// Sends the hello and reads the one-line answer straight off the socket, so
+	// nothing that follows it can end up in a text reader's buffer. An older
+	// server answers "Invalid choice." and simply waits for a menu choice.
+	private static boolean negotiateBinary(Socket socket) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		out.write((BinaryProtocol.HELLO + "\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+
+		InputStream in = socket.getInputStream();
+		ByteArrayOutputStream reply = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) >= 0 && b != '\n') {
+			reply.write(b);
+		}
+		return reply.toString(StandardCharsets.UTF_8).trim().equals(BinaryProtocol.HELLO_OK);
+	}
+
+	// On the I/O thread
+	private void write(String line, byte[] frame) {
+		if (closed.get()) return;
+		try {
+			if (binary) {
+				if (frame == null) return;
+				frameOutput.writeInt(frame.length);
+				frameOutput.write(frame);
+				frameOutput.flush();
+			} else {
+				if (line == null) return;
+				textOutput.write(line);
+				textOutput.write('\n');
+				textOutput.flush();
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void receive() {
+		try {
+			if (binary) {
+				receiveFrames();
+			} else {
+				receiveLines();
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void receiveLines() throws IOException {
+		String message;
+		while ((message = textInput.readLine()) != null) {
+			if (message.equals("PING")) {
+				// Heartbeat; the server drops connections that stop answering
+				send("PONG", null);
+				continue;
+			}
+			listener.onMessage(message);
+		}
+		throw new EOFException("Server closed the connection");
+	}
+
+	private void receiveFrames() throws IOException {
+		while (true) {
+			int length = frameInput.readInt();
+			if (length <= 0 || length > BinaryProtocol.MAX_FRAME_BYTES) {
+				throw new IOException("Bad frame length " + length);
+			}
+			byte[] body = new byte[length];
+			frameInput.readFully(body);
+			ByteBuffer frame = ByteBuffer.wrap(body);
+			switch (frame.get()) {
+				case BinaryProtocol.TEXT:
+					listener.onMessage(BinaryProtocol.readRest(frame));
+					break;
+				case BinaryProtocol.ROOM: {
+					int roomId = frame.getInt();
+					listener.onRoom(BinaryProtocol.readString(frame), roomId);
+					break;
+				}
+				case BinaryProtocol.CHAT:
+					frame.getInt();
+					listener.onMessage(BinaryProtocol.readString(frame) + ": " + BinaryProtocol.readRest(frame));
+					break;
+				case BinaryProtocol.PING:
+					send(null, BinaryProtocol.pong());
+					break;
+				default:
+					// Newer server; skip what this client doesn't understand
+			}
+		}
+	}
+
+	private void fail(IOException cause) {
+		if (closed.compareAndSet(false, true)) {
+			closeSocket();
+			io.shutdown();
+			listener.onDisconnect(cause);
+		}
+	}
+
+	private void closeSocket() {
+		Socket socket = this.socket;
+		if (socket == null) return;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing left to do with it
+		}
+	}
+}
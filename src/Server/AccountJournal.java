@@ -0,0 +1,305 @@
+package Server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Write-ahead log for the AccountStore. Every change is one small record in the
+// journal; a single writer thread batches whatever records are waiting into one
+// write and one fsync (group commit). When the journal grows past a threshold, or
+// has been idle with changes for a while, the writer forces the store to disk and
+// empties the journal. Startup opens the store and replays just the journal on
+// top of it. Replaying a record twice is harmless, so a crash between forcing the
+// store and truncating the journal loses nothing.
+//
+// File layout: a RecordFile. Snapshot files from before the store existed use
+// the same format with their own magic and are imported once.
+final class AccountJournal implements Closeable {
+	private static final Logger LOGGER = Logger.getLogger(AccountJournal.class.getName());
+
+	private static final int JOURNAL_MAGIC = 0x59415041; // "YAPA"
+	private static final int SNAPSHOT_MAGIC = 0x59415053; // "YAPS"
+	private static final short VERSION = 1;
+	private static final int HEADER_BYTES = RecordFile.HEADER_BYTES;
+
+	private static final byte ACCOUNT = 1;
+	private static final byte ROOM_JOINED = 2;
+	private static final byte ROOM_LEFT = 3;
+	private static final byte LOCKED = 4;
+	private static final byte UNLOCKED = 5;
+
+	private static final int MAX_BATCH = 1024;
+	private static final long COMPACT_BYTES = 16L * 1024 * 1024;
+	private static final long COMPACT_IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+	private static final class Pending {
+		final byte[] record;
+		final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+		Pending(byte[] record) {
+			this.record = record;
+		}
+	}
+
+	private static final Pending STOP = new Pending(new byte[0]);
+
+	private final Path journalPath;
+	private final AccountStore store;
+	private final BlockingQueue<Pending> pending = new LinkedBlockingQueue<>();
+	private final FileChannel journal;
+	private final Thread writer;
+	// End of the last committed batch; writer thread only once started. A batch
+	// that fails is cut off here, so it never sits in front of later ones.
+	private long end;
+	private long lastCompaction = System.nanoTime();
+	// Records applied by replay()
+	private int replayed;
+
+	private AccountJournal(Path journalPath, AccountStore store) throws IOException {
+		this.journalPath = journalPath;
+		this.store = store;
+		this.journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.writer = new Thread(this::writeLoop, "account-journal");
+		this.writer.setDaemon(true);
+	}
+
+	// Replays the journal (after any old snapshot) into the store, then starts the writer
+	static AccountJournal open(Path journalPath, Path legacySnapshotPath, AccountStore store) throws IOException {
+		AccountJournal journal = new AccountJournal(journalPath, store);
+		journal.replay(legacySnapshotPath);
+		journal.writer.start();
+		return journal;
+	}
+
+	// Resolves once the record is on disk
+	CompletableFuture<Void> accountCreated(String username, byte[] salt, String hashedPassword) {
+		return append(ACCOUNT, username, out -> {
+			out.writeUTF(username);
+			out.writeShort(salt.length);
+			out.write(salt);
+			out.writeUTF(hashedPassword);
+		});
+	}
+
+	// Both refuse a room name over Server.MAX_ROOM_NAME_BYTES with an
+	// IllegalArgumentException, before anything is queued
+	void roomJoined(String username, String room) {
+		roomRecord(ROOM_JOINED, username, room);
+	}
+
+	void roomLeft(String username, String room) {
+		roomRecord(ROOM_LEFT, username, room);
+	}
+
+	void locked(String username, Instant until) {
+		append(LOCKED, username, out -> {
+			out.writeUTF(username);
+			out.writeLong(until.getEpochSecond());
+		});
+	}
+
+	void unlocked(String username) {
+		append(UNLOCKED, username, out -> out.writeUTF(username));
+	}
+
+	private void roomRecord(byte type, String username, String room) {
+		if (!Server.isValidRoomName(room)) {
+			throw new IllegalArgumentException("Room name over " + Server.MAX_ROOM_NAME_BYTES + " bytes");
+		}
+		append(type, username, out -> {
+			out.writeUTF(username);
+			out.writeUTF(room);
+		});
+	}
+
+	// A record that can't be encoded fails like one that can't be written
+	private CompletableFuture<Void> append(byte type, String username, RecordFile.Payload payload) {
+		byte[] record;
+		try {
+			record = RecordFile.record(type, payload);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not journal an account change for " + username, e);
+			return CompletableFuture.failedFuture(e);
+		}
+		if (!writer.isAlive()) {
+			return CompletableFuture.failedFuture(new IOException("Account journal is closed"));
+		}
+		Pending entry = new Pending(record);
+		pending.add(entry);
+		return entry.committed;
+	}
+
+	// Records queued for the writer but not yet on disk
+	int pending() {
+		return pending.size();
+	}
+
+	// Flushes everything queued, compacts the journal into the store (forcing the
+	// store and emptying the journal), then stops the writer and closes both
+	@Override
+	public void close() {
+		pending.add(STOP);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeLoop() {
+		List<Pending> batch = new ArrayList<>();
+		boolean stopping = false;
+		while (!stopping) {
+			try {
+				Pending first = pending.poll(1, TimeUnit.MINUTES);
+				if (first != null) {
+					batch.add(first);
+					pending.drainTo(batch, MAX_BATCH - 1);
+				}
+				stopping = batch.remove(STOP);
+				if (!batch.isEmpty()) {
+					commit(batch);
+				}
+				long journalBytes = end - HEADER_BYTES;
+				if (journalBytes >= COMPACT_BYTES || stopping && journalBytes > 0
+						|| journalBytes > 0 && System.nanoTime() - lastCompaction >= COMPACT_IDLE_NANOS) {
+					compact();
+				}
+			} catch (InterruptedException e) {
+				stopping = true;
+			} catch (IOException e) {
+				LOGGER.log(Level.SEVERE, "Account journal write failed", e);
+				for (Pending entry : batch) {
+					entry.committed.completeExceptionally(e);
+				}
+				discardPastEnd();
+			} finally {
+				batch.clear();
+			}
+		}
+		try {
+			journal.close();
+			store.close();
+		} catch (IOException e) {
+			LOGGER.warning("Error closing account journal: " + e.getMessage());
+		}
+		Pending late;
+		while ((late = pending.poll()) != null) {
+			late.committed.completeExceptionally(new IOException("Account journal is closed"));
+		}
+	}
+
+	private void commit(List<Pending> batch) throws IOException {
+		long started = System.nanoTime();
+		int size = 0;
+		for (Pending entry : batch) {
+			size += entry.record.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (Pending entry : batch) {
+			buffer.put(entry.record);
+		}
+		buffer.flip();
+		long position = end;
+		while (buffer.hasRemaining()) {
+			position += journal.write(buffer, position);
+		}
+		journal.force(false);
+		end = position;
+		Metrics.JOURNAL_FLUSH_NANOS.record(System.nanoTime() - started);
+		Metrics.JOURNAL_BATCH_RECORDS.record(batch.size());
+		for (Pending entry : batch) {
+			entry.committed.complete(null);
+		}
+	}
+
+	// Writer thread only. Drops whatever part of a failed batch reached the file;
+	// if even that fails, the next batch still overwrites it from end.
+	private void discardPastEnd() {
+		try {
+			if (journal.size() > end) {
+				journal.truncate(end);
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not cut a failed batch off the account journal", e);
+		}
+	}
+
+	// Writer thread only. Every record committed so far has already been applied to
+	// the store by the thread that queued it, so once the store is forced the journal
+	// can start over.
+	private void compact() throws IOException {
+		long started = System.nanoTime();
+		store.force();
+		journal.truncate(HEADER_BYTES);
+		end = HEADER_BYTES;
+		journal.force(true);
+		lastCompaction = System.nanoTime();
+		Metrics.ACCOUNT_CHECKPOINT_NANOS.record(lastCompaction - started);
+		LOGGER.fine("Checkpointed account store at " + store.size() + " accounts");
+	}
+
+	private void replay(Path legacySnapshotPath) throws IOException {
+		boolean imported = false;
+		if (Files.exists(legacySnapshotPath)) {
+			try (FileChannel snapshot = FileChannel.open(legacySnapshotPath, StandardOpenOption.READ)) {
+				RecordFile.replay(snapshot, SNAPSHOT_MAGIC, VERSION, legacySnapshotPath, "an account journal", false,
+						(body, position) -> apply(body));
+			}
+			imported = true;
+		}
+
+		if (journal.size() == 0) {
+			journal.write(RecordFile.header(JOURNAL_MAGIC, VERSION), 0);
+			journal.force(true);
+			end = HEADER_BYTES;
+		} else {
+			// A torn tail is cut off, so the next batch goes right after the last good record
+			end = RecordFile.replay(journal, JOURNAL_MAGIC, VERSION, journalPath, "an account journal", true,
+					(body, position) -> apply(body));
+		}
+
+		if (imported) {
+			compact();
+			Files.delete(legacySnapshotPath);
+		}
+		LOGGER.info("Opened " + store.size() + " user accounts, replayed " + replayed + " account records");
+	}
+
+	private void apply(byte[] body) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		byte type = in.readByte();
+		String username = in.readUTF();
+		switch (type) {
+			case ACCOUNT:
+				byte[] salt = new byte[in.readUnsignedShort()];
+				in.readFully(salt);
+				store.restore(username, salt, Base64.getDecoder().decode(in.readUTF()));
+				break;
+			case ROOM_JOINED:
+				store.addRoom(username, in.readUTF());
+				break;
+			case ROOM_LEFT:
+				store.removeRoom(username, in.readUTF());
+				break;
+			case LOCKED:
+				store.setLockout(username, in.readLong());
+				break;
+			case UNLOCKED:
+				store.setLockout(username, 0);
+				break;
+			default:
+				// Written by a newer server; skip what this one doesn't understand
+				LOGGER.fine("Skipping unknown account record type " + type);
+		}
+		replayed++;
+	}
+}
@@ -0,0 +1,523 @@
+package Server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+// On-disk account table: an open-addressed hash index of fixed-size records,
+// memory-mapped so opening it costs the same for ten users or ten million and no
+// account lives on the heap until someone looks it up. Each record holds the
+// username, salt, password hash and lockout state, plus a pointer into a side
+// file of room lists. That file is append-only: a changed list is written again at
+// the end and the old bytes become garbage, reclaimed when the store is next opened
+// by copying live lists into the next generation of the file.
+//
+// The index is not crash-consistent by itself: AccountJournal is the write-ahead
+// log and only truncates after force(). Accounts are never deleted, so linear
+// probing needs no tombstones.
+//
+// Index layout: 64-byte header (int magic, short version, int capacity, int size,
+// long room-list garbage bytes, int room-list file generation), then capacity
+// slots of SLOT_BYTES.
+final class AccountStore implements Closeable {
+	private static final Logger LOGGER = Logger.getLogger(AccountStore.class.getName());
+
+	static final int MAX_USERNAME_BYTES = 48;
+	static final int SALT_BYTES = 16;
+	static final int HASH_BYTES = 32;
+
+	private static final int MAGIC = 0x59415049; // "YAPI"
+	private static final short VERSION = 1;
+
+	private static final int HEADER_BYTES = 64;
+	private static final int H_MAGIC = 0;
+	private static final int H_VERSION = 4;
+	private static final int H_CAPACITY = 8;
+	private static final int H_SIZE = 12;
+	private static final int H_ROOMS_GARBAGE = 16;
+	private static final int H_ROOMS_GENERATION = 24;
+
+	private static final int SLOT_BYTES = 128;
+	private static final int S_STATE = 0;
+	private static final int S_NAME_LENGTH = 1;
+	private static final int S_NAME = 2;
+	private static final int S_SALT = S_NAME + MAX_USERNAME_BYTES;
+	private static final int S_HASH = S_SALT + SALT_BYTES;
+	private static final int S_ATTEMPTS = S_HASH + HASH_BYTES;
+	private static final int S_LOCKOUT = S_ATTEMPTS + 4;
+	private static final int S_ROOMS_OFFSET = S_LOCKOUT + 8;
+	private static final int S_ROOMS_LENGTH = S_ROOMS_OFFSET + 8;
+
+	private static final int INITIAL_CAPACITY = 1024;
+	// A mapping can't reach 2 GB, so 8M slots (1 GB) is as far as doubling goes:
+	// about 5.8M accounts at the load limit
+	private static final int MAX_CAPACITY = 1 << 23;
+	private static final double MAX_LOAD = 0.7;
+	private static final long ROOMS_COMPACT_BYTES = 1024 * 1024;
+
+	// What authenticateUser needs from one record, copied out of the mapping
+	static final class Account {
+		final byte[] salt;
+		final byte[] hash;
+		final int loginAttempts;
+		final long lockoutUntil;
+
+		Account(byte[] salt, byte[] hash, int loginAttempts, long lockoutUntil) {
+			this.salt = salt;
+			this.hash = hash;
+			this.loginAttempts = loginAttempts;
+			this.lockoutUntil = lockoutUntil;
+		}
+
+		boolean canAttemptLogin(long nowEpochSecond) {
+			return lockoutUntil == 0 || nowEpochSecond > lockoutUntil;
+		}
+	}
+
+	private final Path indexPath;
+	private final Path roomsPath;
+	// Read lock for lookups, write lock for anything that touches the mapping
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	// Serializes read-modify-append of room lists
+	private final ReentrantLock roomsLock = new ReentrantLock();
+	private FileChannel indexChannel;
+	private MappedByteBuffer index;
+	private int capacity;
+	private int size;
+	private FileChannel rooms;
+
+	private AccountStore(Path indexPath, Path roomsPath) {
+		this.indexPath = indexPath;
+		this.roomsPath = roomsPath;
+	}
+
+	static AccountStore open(Path indexPath, Path roomsPath) throws IOException {
+		AccountStore store = new AccountStore(indexPath, roomsPath);
+		boolean existing = Files.exists(indexPath) && Files.size(indexPath) >= HEADER_BYTES;
+		if (existing) {
+			store.indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			int capacity = store.readHeader();
+			store.index = store.indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, mappedBytes(capacity));
+			store.capacity = capacity;
+			store.size = store.index.getInt(H_SIZE);
+		} else {
+			store.indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			store.index = createIndex(store.indexChannel, INITIAL_CAPACITY);
+			store.capacity = INITIAL_CAPACITY;
+		}
+		int generation = store.index.getInt(H_ROOMS_GENERATION);
+		Files.deleteIfExists(store.roomsFile(generation + 1)); // left by an interrupted compaction
+		store.rooms = FileChannel.open(store.roomsFile(generation), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		long garbage = store.index.getLong(H_ROOMS_GARBAGE);
+		if (garbage > ROOMS_COMPACT_BYTES && garbage * 2 > store.rooms.size()) {
+			store.compactRooms();
+		}
+		return store;
+	}
+
+	private int readHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		while (header.hasRemaining() && indexChannel.read(header, header.position()) > 0) {
+		}
+		if (header.getInt(H_MAGIC) != MAGIC) {
+			throw new IOException(indexPath + " is not an account index");
+		}
+		if (header.getShort(H_VERSION) > VERSION) {
+			throw new IOException(indexPath + " has unsupported version " + header.getShort(H_VERSION));
+		}
+		return header.getInt(H_CAPACITY);
+	}
+
+	private static long mappedBytes(int capacity) {
+		return HEADER_BYTES + (long) capacity * SLOT_BYTES;
+	}
+
+	// The file grows sparse; untouched slots read back as zero, i.e. empty
+	private static MappedByteBuffer createIndex(FileChannel channel, int capacity) throws IOException {
+		MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedBytes(capacity));
+		index.putInt(H_MAGIC, MAGIC);
+		index.putShort(H_VERSION, VERSION);
+		index.putInt(H_CAPACITY, capacity);
+		index.putInt(H_SIZE, 0);
+		index.putLong(H_ROOMS_GARBAGE, 0);
+		index.putInt(H_ROOMS_GENERATION, 0);
+		return index;
+	}
+
+	private Path roomsFile(int generation) {
+		return roomsPath.resolveSibling(roomsPath.getFileName() + "." + generation);
+	}
+
+	static boolean isStorableUsername(String username) {
+		return username.getBytes(StandardCharsets.UTF_8).length <= MAX_USERNAME_BYTES;
+	}
+
+	int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	boolean contains(String username) {
+		byte[] name = username.getBytes(StandardCharsets.UTF_8);
+		lock.readLock().lock();
+		try {
+			return find(name) >= 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	Account get(String username) {
+		byte[] name = username.getBytes(StandardCharsets.UTF_8);
+		lock.readLock().lock();
+		try {
+			int slot = find(name);
+			if (slot < 0) return null;
+			int base = slotOffset(slot);
+			byte[] salt = new byte[SALT_BYTES];
+			byte[] hash = new byte[HASH_BYTES];
+			index.get(base + S_SALT, salt);
+			index.get(base + S_HASH, hash);
+			return new Account(salt, hash, index.getInt(base + S_ATTEMPTS), index.getLong(base + S_LOCKOUT));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// Returns false if the username is taken
+	boolean create(String username, byte[] salt, byte[] hash) throws IOException {
+		byte[] name = username.getBytes(StandardCharsets.UTF_8);
+		if (name.length > MAX_USERNAME_BYTES || salt.length != SALT_BYTES || hash.length != HASH_BYTES) {
+			throw new IllegalArgumentException("Account does not fit an index record: " + username);
+		}
+		lock.writeLock().lock();
+		try {
+			if (find(name) >= 0) return false;
+			if (size + 1 > capacity * MAX_LOAD) {
+				grow();
+			}
+			int base = slotOffset(-find(name) - 1);
+			index.put(base + S_NAME_LENGTH, (byte) name.length);
+			index.put(base + S_NAME, name);
+			index.put(base + S_SALT, salt);
+			index.put(base + S_HASH, hash);
+			index.putInt(base + S_ATTEMPTS, 0);
+			index.putLong(base + S_LOCKOUT, 0);
+			index.putLong(base + S_ROOMS_OFFSET, 0);
+			index.putInt(base + S_ROOMS_LENGTH, 0);
+			index.put(base + S_STATE, (byte) 1);
+			size++;
+			index.putInt(H_SIZE, size);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// Replay path: creates the account, or writes the credentials over those of
+	// the one already there. A slot can straddle a page, and after a crash the
+	// page holding its name may have reached the disk while the one holding the
+	// salt or hash did not.
+	void restore(String username, byte[] salt, byte[] hash) throws IOException {
+		if (create(username, salt, hash)) return;
+		byte[] name = username.getBytes(StandardCharsets.UTF_8);
+		lock.writeLock().lock();
+		try {
+			int slot = find(name);
+			if (slot < 0) return;
+			int base = slotOffset(slot);
+			index.put(base + S_SALT, salt);
+			index.put(base + S_HASH, hash);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// Counts a failed login; returns the lockout expiry if this failure locked the account, else 0
+	long loginFailed(String username, int maxAttempts, long nowEpochSecond, long blockSeconds) {
+		byte[] name = username.getBytes(StandardCharsets.UTF_8);
+		lock.writeLock().lock();
+		try {
+			int slot = find(name);
+			if (slot < 0) return 0;
+			int base = slotOffset(slot);
+			int attempts = index.getInt(base + S_ATTEMPTS) + 1;
+			index.putInt(base + S_ATTEMPTS, attempts);
+			if (attempts < maxAttempts) return 0;
+			long until = nowEpochSecond + blockSeconds;
+			index.putLong(base + S_LOCKOUT, until);
+			return until;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// Clears failed attempts; returns true if the account had been locked
+	boolean loginSucceeded(String username) {
+		return setLockout(username, 0);
+	}
+
+	// Replay and unlock path; until == 0 clears the lockout and the attempt count
+	boolean setLockout(String username, long until) {
+		byte[] name = username.getBytes(StandardCharsets.UTF_8);
+		lock.writeLock().lock();
+		try {
+			int slot = find(name);
+			if (slot < 0) return false;
+			int base = slotOffset(slot);
+			boolean wasLocked = index.getLong(base + S_LOCKOUT) != 0;
+			if (until == 0) {
+				index.putInt(base + S_ATTEMPTS, 0);
+			}
+			index.putLong(base + S_LOCKOUT, until);
+			return wasLocked;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	Set<String> rooms(String username) throws IOException {
+		byte[] name = username.getBytes(StandardCharsets.UTF_8);
+		long offset;
+		int length;
+		lock.readLock().lock();
+		try {
+			int slot = find(name);
+			if (slot < 0) return new LinkedHashSet<>();
+			offset = index.getLong(slotOffset(slot) + S_ROOMS_OFFSET);
+			length = index.getInt(slotOffset(slot) + S_ROOMS_LENGTH);
+		} finally {
+			lock.readLock().unlock();
+		}
+		// Written blobs never change, so they can be read without the lock
+		return readRooms(offset, length);
+	}
+
+	boolean addRoom(String username, String room) throws IOException {
+		roomsLock.lock();
+		try {
+			Set<String> current = rooms(username);
+			return current.add(room) && writeRooms(username, current);
+		} finally {
+			roomsLock.unlock();
+		}
+	}
+
+	boolean removeRoom(String username, String room) throws IOException {
+		roomsLock.lock();
+		try {
+			Set<String> current = rooms(username);
+			return current.remove(room) && writeRooms(username, current);
+		} finally {
+			roomsLock.unlock();
+		}
+	}
+
+	// Makes every change so far durable
+	void force() throws IOException {
+		rooms.force(false);
+		lock.writeLock().lock();
+		try {
+			index.force();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		force();
+		rooms.close();
+		indexChannel.close();
+	}
+
+	private static int spread(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private static int hash(byte[] name) {
+		int h = 1;
+		for (byte b : name) {
+			h = 31 * h + b;
+		}
+		return spread(h);
+	}
+
+	private static int slotOffset(int slot) {
+		return HEADER_BYTES + slot * SLOT_BYTES;
+	}
+
+	// Caller holds the lock. Returns the slot, or -(empty slot + 1) where it would go.
+	private int find(byte[] name) {
+		int mask = capacity - 1;
+		for (int slot = hash(name) & mask; ; slot = (slot + 1) & mask) {
+			int base = slotOffset(slot);
+			if (index.get(base + S_STATE) == 0) return -slot - 1;
+			if (nameEquals(base, name)) return slot;
+		}
+	}
+
+	private boolean nameEquals(int base, byte[] name) {
+		if (index.get(base + S_NAME_LENGTH) != name.length) return false;
+		for (int i = 0; i < name.length; i++) {
+			if (index.get(base + S_NAME + i) != name[i]) return false;
+		}
+		return true;
+	}
+
+	// Caller holds the write lock. Rehashes into a file twice the size and swaps it in.
+	private void grow() throws IOException {
+		if (capacity >= MAX_CAPACITY) {
+			throw new IOException("Account index is full at " + size + " accounts");
+		}
+		int newCapacity = capacity * 2;
+		Path temp = indexPath.resolveSibling(indexPath.getFileName() + ".grow");
+		Files.deleteIfExists(temp);
+		FileChannel newChannel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		MappedByteBuffer newIndex = createIndex(newChannel, newCapacity);
+		byte[] slotBytes = new byte[SLOT_BYTES];
+		byte[] name = new byte[MAX_USERNAME_BYTES];
+		int mask = newCapacity - 1;
+		for (int slot = 0; slot < capacity; slot++) {
+			int base = slotOffset(slot);
+			if (index.get(base + S_STATE) == 0) continue;
+			index.get(base, slotBytes);
+			int length = slotBytes[S_NAME_LENGTH];
+			System.arraycopy(slotBytes, S_NAME, name, 0, length);
+			int target = hash(java.util.Arrays.copyOf(name, length)) & mask;
+			while (newIndex.get(slotOffset(target) + S_STATE) != 0) {
+				target = (target + 1) & mask;
+			}
+			newIndex.put(slotOffset(target), slotBytes);
+		}
+		newIndex.putInt(H_SIZE, size);
+		newIndex.putLong(H_ROOMS_GARBAGE, index.getLong(H_ROOMS_GARBAGE));
+		newIndex.putInt(H_ROOMS_GENERATION, index.getInt(H_ROOMS_GENERATION));
+		newIndex.force();
+
+		Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		indexChannel.close();
+		indexChannel = newChannel;
+		index = newIndex;
+		capacity = newCapacity;
+		LOGGER.info("Grew account index to " + newCapacity + " slots");
+	}
+
+	private Set<String> readRooms(long offset, int length) throws IOException {
+		Set<String> result = new LinkedHashSet<>();
+		if (length == 0) return result;
+		ByteBuffer blob = ByteBuffer.allocate(length);
+		while (blob.hasRemaining()) {
+			if (rooms.read(blob, offset + blob.position()) < 0) {
+				throw new EOFException("Room list truncated in " + roomsPath);
+			}
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(blob.array()));
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			result.add(in.readUTF());
+		}
+		return result;
+	}
+
+	private static byte[] encodeRooms(Set<String> names) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(names.size());
+		for (String name : names) {
+			out.writeUTF(name);
+		}
+		return bytes.toByteArray();
+	}
+
+	// Caller holds roomsLock
+	private boolean writeRooms(String username, Set<String> names) throws IOException {
+		long offset = 0;
+		int length = 0;
+		if (!names.isEmpty()) {
+			byte[] blob = encodeRooms(names);
+			offset = rooms.size();
+			ByteBuffer buffer = ByteBuffer.wrap(blob);
+			while (buffer.hasRemaining()) {
+				rooms.write(buffer, offset + buffer.position());
+			}
+			length = blob.length;
+		}
+
+		byte[] name = username.getBytes(StandardCharsets.UTF_8);
+		lock.writeLock().lock();
+		try {
+			int slot = find(name);
+			if (slot < 0) return false;
+			int base = slotOffset(slot);
+			long garbage = index.getLong(H_ROOMS_GARBAGE) + index.getInt(base + S_ROOMS_LENGTH);
+			index.putLong(H_ROOMS_GARBAGE, garbage);
+			index.putLong(base + S_ROOMS_OFFSET, offset);
+			index.putInt(base + S_ROOMS_LENGTH, length);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// Startup only. Copies live room lists into the next generation of the file and
+	// repoints a copy of the index at them; renaming that copy over the index is the
+	// single step that switches generations, so a crash leaves one consistent pair.
+	private void compactRooms() throws IOException {
+		int generation = index.getInt(H_ROOMS_GENERATION);
+		Path nextRooms = roomsFile(generation + 1);
+		Path tempIndex = indexPath.resolveSibling(indexPath.getFileName() + ".compact");
+		index.force();
+		Files.copy(indexPath, tempIndex, StandardCopyOption.REPLACE_EXISTING);
+
+		try (FileChannel compacted = FileChannel.open(nextRooms, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			 FileChannel newChannel = FileChannel.open(tempIndex, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer newIndex = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, mappedBytes(capacity));
+			long position = 0;
+			for (int slot = 0; slot < capacity; slot++) {
+				int base = slotOffset(slot);
+				int length = index.getInt(base + S_ROOMS_LENGTH);
+				if (index.get(base + S_STATE) == 0 || length == 0) continue;
+				ByteBuffer blob = ByteBuffer.allocate(length);
+				long offset = index.getLong(base + S_ROOMS_OFFSET);
+				while (blob.hasRemaining()) {
+					if (rooms.read(blob, offset + blob.position()) < 0) {
+						throw new EOFException("Room list truncated in " + roomsFile(generation));
+					}
+				}
+				blob.flip();
+				newIndex.putLong(base + S_ROOMS_OFFSET, position);
+				while (blob.hasRemaining()) {
+					position += compacted.write(blob, position);
+				}
+			}
+			compacted.force(true);
+			newIndex.putLong(H_ROOMS_GARBAGE, 0);
+			newIndex.putInt(H_ROOMS_GENERATION, generation + 1);
+			newIndex.force();
+		}
+
+		Files.move(tempIndex, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		indexChannel.close();
+		rooms.close();
+		Files.deleteIfExists(roomsFile(generation));
+		indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, mappedBytes(capacity));
+		rooms = FileChannel.open(nextRooms, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		LOGGER.info("Compacted room lists into " + nextRooms.getFileName());
+	}
+}
@@ -0,0 +1,118 @@
+package Server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Opt-in alternative to the newline protocol. A client asks for it by sending
+// HELLO as the very first line; the server answers HELLO_OK as a text line and
+// from then on both directions use frames of
+//   int length, byte opcode, payload
+// where length covers opcode and payload. Strings inside a payload are an
+// unsigned short byte count plus UTF-8, except the last text field of a frame,
+// which runs to the end (so a message may contain newlines). Rooms are
+// referred to by the ids the server announces in ROOM frames.
+//
+// A server without this support answers HELLO with "Invalid choice." and stays
+// on text, which is how a client knows to fall back.
+final class BinaryProtocol {
+	static final String HELLO = "PROTOCOL BINARY 1";
+	static final String HELLO_OK = "PROTOCOL BINARY 1 OK";
+
+	static final int MAX_FRAME_BYTES = 64 * 1024;
+	// Largest string the unsigned short count in front of it can describe
+	static final int MAX_STRING_BYTES = 0xFFFF;
+
+	// Client to server
+	static final byte LOGIN = 0x01;     // username, password
+	static final byte REGISTER = 0x02;  // username, password
+	static final byte RESUME = 0x03;    // resume token, from a SESSION line
+	static final byte CHAT_IDS = 0x04;  // (empty); chat kept in history then comes as CHAT text lines with ids
+	static final byte SESSIONS = 0x05;  // (empty); a SESSION text line with a resume token then comes at login
+	static final byte MESSAGE = 0x10;   // int roomId, text
+	static final byte JOIN = 0x11;      // room name
+	static final byte LEAVE = 0x12;     // int roomId
+	static final byte PM = 0x13;        // recipient, text
+	static final byte LOGOUT = 0x14;    // (empty)
+	static final byte HISTORY = 0x15;   // int roomId, long beforeId, int limit
+	static final byte SUBSCRIBE = 0x16;   // usernames (or "*"), each a string, to the end
+	static final byte UNSUBSCRIBE = 0x17; // usernames (or "*"), each a string, to the end
+	static final byte PONG = 0x18;        // (empty), the answer to PING
+	static final byte INBOX_ACK = 0x19;   // long id of the last offline message received
+
+	// Server to client
+	static final byte TEXT = (byte) 0x80; // text: any reply the text protocol sends as a line
+	static final byte ROOM = (byte) 0x81; // int roomId, room name
+	static final byte CHAT = (byte) 0x82; // int roomId, sender, text
+	static final byte PING = (byte) 0x83; // (empty); the client answers PONG
+
+	static final byte[] PING_FRAME = frame(PING, 0).array();
+
+	private BinaryProtocol() {
+	}
+
+	static Metrics.Command command(byte opcode) {
+		switch (opcode) {
+			case LOGIN: return Metrics.Command.LOGIN;
+			case REGISTER: return Metrics.Command.REGISTER;
+			case RESUME: return Metrics.Command.RESUME;
+			case MESSAGE: return Metrics.Command.MESSAGE;
+			case JOIN: return Metrics.Command.JOIN;
+			case LEAVE: return Metrics.Command.LEAVE;
+			case PM: return Metrics.Command.PM;
+			case LOGOUT: return Metrics.Command.LOGOUT;
+			case HISTORY: return Metrics.Command.HISTORY;
+			case SUBSCRIBE: return Metrics.Command.SUBSCRIBE;
+			case UNSUBSCRIBE: return Metrics.Command.UNSUBSCRIBE;
+			case INBOX_ACK: return Metrics.Command.INBOX_ACK;
+			default: return Metrics.Command.OTHER;
+		}
+	}
+
+	static byte[] text(String line) {
+		byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+		return frame(TEXT, bytes.length).put(bytes).array();
+	}
+
+	static byte[] room(int roomId, String name) {
+		byte[] nameBytes = string(name);
+		return frame(ROOM, 4 + 2 + nameBytes.length)
+				.putInt(roomId).putShort((short) nameBytes.length).put(nameBytes).array();
+	}
+
+	static byte[] chat(int roomId, String sender, String message) {
+		byte[] senderBytes = string(sender);
+		byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+		return frame(CHAT, 4 + 2 + senderBytes.length + messageBytes.length)
+				.putInt(roomId).putShort((short) senderBytes.length).put(senderBytes).put(messageBytes).array();
+	}
+
+	// A length-prefixed string field; refused rather than letting its count wrap
+	private static byte[] string(String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > MAX_STRING_BYTES) {
+			throw new IllegalArgumentException("String field of " + bytes.length + " bytes");
+		}
+		return bytes;
+	}
+
+	private static ByteBuffer frame(byte opcode, int payloadBytes) {
+		return ByteBuffer.allocate(4 + 1 + payloadBytes).putInt(1 + payloadBytes).put(opcode);
+	}
+
+	// Payload readers; a frame that is too short throws BufferUnderflowException
+	static String readString(ByteBuffer frame) {
+		int length = Short.toUnsignedInt(frame.getShort());
+		if (length > frame.remaining()) {
+			throw new java.nio.BufferUnderflowException();
+		}
+		String value = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+		frame.position(frame.position() + length);
+		return value;
+	}
+
+	static String readRest(ByteBuffer frame) {
+		String value = new String(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), StandardCharsets.UTF_8);
+		frame.position(frame.limit());
+		return value;
+	}
+}
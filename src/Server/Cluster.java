@@ -0,0 +1,294 @@
+package Server;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+// Routing for a multi-node deployment. Clients stay on whichever node they
+// connected to; what is partitioned is the directory of where things are. The
+// HashRing owner of a room name tracks which nodes have local members of that
+// room, and the owner of a username tracks which node the user is logged in on.
+//
+// Only presence and fan-out are shared. Accounts, saved rooms, room history and
+// offline messages stay on the node that has them: a user registers on one node
+// and must keep logging in there (pin clients by username in front of the
+// cluster), usernames should be unique across nodes, and a room's history on a
+// node holds only what was said while that node had members in it.
+//
+//   broadcast: deliver locally, PUBLISH to the room's owner, which sends DELIVER
+//              to every other node with members
+//   PM:        ROUTE to the recipient's owner, which forwards to the node the
+//              recipient is on or, if they are offline, the node they were last
+//              on, which has their account and inbox. That node answers
+//              DELIVERED, or STORED with what its inbox made of the message,
+//              directly to the sender's node. FAILED means nobody knows where
+//              the recipient lives.
+//
+// Directory entries come from SUBSCRIBE/UNSUBSCRIBE as rooms open and close on
+// a node, and ONLINE/OFFLINE as users come and go. When a link comes up the
+// node re-sends the entries the peer owns, and when a peer's link drops its
+// entries are discarded, so a restarted node converges without coordination.
+// Messages to self skip the bus. Every receiver re-checks local state, so a
+// stale entry costs a wasted hop, never a wrong delivery.
+//
+// Message: byte type, int node (origin of a forwarded PM, otherwise -1), then
+// string fields as int byte count plus UTF-8.
+final class Cluster implements ClusterBus.Receiver {
+	private static final Logger LOGGER = Logger.getLogger(Cluster.class.getName());
+
+	private static final byte SUBSCRIBE = 1;     // room
+	private static final byte UNSUBSCRIBE = 2;   // room
+	private static final byte PUBLISH = 3;       // room, sender, message
+	private static final byte DELIVER = 4;       // room, sender, message
+	private static final byte ONLINE = 5;        // user
+	private static final byte OFFLINE = 6;       // user
+	private static final byte ROUTE = 7;         // from, to, message
+	private static final byte PM = 8;            // node = sender's node; from, to, message
+	private static final byte PM_DELIVERED = 9;  // from, to, message
+	private static final byte PM_FAILED = 10;    // from, to, message
+	private static final byte PM_STORED = 11;    // from, to, notice for the sender
+
+	// What this node's server provides; called from bus threads
+	interface Local {
+		// Chat message for local members of room, if there are any
+		void deliverToRoom(String room, String sender, String message);
+
+		// False if "to" is not logged in here
+		boolean deliverPrivate(String from, String to, String message);
+
+		// "to" has an account here but could not take the PM live; keeps it for
+		// them if possible and returns what to tell the sender
+		String storePrivate(String from, String to, String message);
+
+		// Replies to a PM that "from", logged in here, sent to another node
+		void privateDelivered(String from, String to, String message);
+
+		void privateStored(String from, String to, String notice);
+
+		// The recipient is not logged in anywhere, and no node is known to have their account
+		void privateFailed(String from, String to, String message);
+
+		Iterable<String> rooms();
+
+		Iterable<String> users();
+	}
+
+	private final int self;
+	private final HashRing ring;
+	private final ClusterBus bus;
+	private final Local local;
+	// Directory entries this node owns
+	private final Map<String, Set<Integer>> roomNodes = new ConcurrentHashMap<>();
+	private final Map<String, Integer> userNodes = new ConcurrentHashMap<>();
+	// The node each user was last logged in on, which holds their account. Kept
+	// through logouts and peers going down, but not across a restart of this node.
+	private final Map<String, Integer> homeNodes = new ConcurrentHashMap<>();
+
+	Cluster(int self, int nodes, ClusterBus bus, Local local) {
+		this.self = self;
+		this.ring = new HashRing(nodes);
+		this.bus = bus;
+		this.local = local;
+	}
+
+	void registerMetrics() {
+		Metrics.gauge("cluster_peers_up", bus::peersUp);
+		Metrics.gauge("cluster_messages_dropped_total", bus::dropped);
+		Metrics.gauge("cluster_directory_rooms", roomNodes::size);
+		Metrics.gauge("cluster_directory_users", userNodes::size);
+	}
+
+	// First local member joined room
+	void roomOpened(String room) {
+		send(ring.owner(room), encode(SUBSCRIBE, -1, room));
+	}
+
+	// Last local member left room
+	void roomClosed(String room) {
+		send(ring.owner(room), encode(UNSUBSCRIBE, -1, room));
+	}
+
+	// Sends to members on other nodes; local members are the caller's job
+	void publish(String room, String sender, String message) {
+		send(ring.owner(room), encode(PUBLISH, -1, room, sender, message));
+	}
+
+	void userOnline(String user) {
+		send(ring.owner(user), encode(ONLINE, -1, user));
+	}
+
+	void userOffline(String user) {
+		send(ring.owner(user), encode(OFFLINE, -1, user));
+	}
+
+	// For a recipient not logged in here; the outcome comes back through Local
+	void privateMessage(String from, String to, String message) {
+		send(ring.owner(to), encode(ROUTE, -1, from, to, message));
+	}
+
+	void close() {
+		bus.close();
+	}
+
+	private void send(int node, byte[] message) {
+		if (node == self) {
+			onMessage(self, message);
+		} else {
+			bus.send(node, message);
+		}
+	}
+
+	@Override
+	public void onMessage(int fromNode, byte[] message) {
+		try {
+			dispatch(fromNode, message);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			LOGGER.warning("Ignoring truncated cluster message from node " + fromNode);
+		}
+	}
+
+	private void dispatch(int fromNode, byte[] message) {
+		ByteBuffer in = ByteBuffer.wrap(message);
+		byte type = in.get();
+		int node = in.getInt();
+		switch (type) {
+			case SUBSCRIBE:
+				// Every change to a room's node set happens under its map entry's lock
+				roomNodes.compute(readString(in), (room, nodes) -> {
+					if (nodes == null) {
+						nodes = ConcurrentHashMap.newKeySet();
+					}
+					nodes.add(fromNode);
+					return nodes;
+				});
+				break;
+			case UNSUBSCRIBE:
+				roomNodes.computeIfPresent(readString(in), (room, nodes) -> {
+					nodes.remove(fromNode);
+					return nodes.isEmpty() ? null : nodes;
+				});
+				break;
+			case PUBLISH: {
+				Set<Integer> nodes = roomNodes.get(readString(in));
+				if (nodes == null) break;
+				// Same fields, so the message is re-used with only its type changed
+				byte[] deliver = message.clone();
+				deliver[0] = DELIVER;
+				for (int target : nodes) {
+					if (target != fromNode) {
+						send(target, deliver);
+					}
+				}
+				break;
+			}
+			case DELIVER:
+				local.deliverToRoom(readString(in), readString(in), readString(in));
+				break;
+			case ONLINE: {
+				String user = readString(in);
+				userNodes.put(user, fromNode);
+				homeNodes.put(user, fromNode);
+				break;
+			}
+			case OFFLINE:
+				userNodes.remove(readString(in), fromNode);
+				break;
+			case ROUTE: {
+				String from = readString(in);
+				String to = readString(in);
+				Integer target = userNodes.get(to);
+				if (target == null) {
+					target = homeNodes.get(to);
+				}
+				if (target == null) {
+					send(fromNode, encode(PM_FAILED, -1, from, to, readString(in)));
+				} else {
+					send(target, encode(PM, fromNode, from, to, readString(in)));
+				}
+				break;
+			}
+			case PM: {
+				String from = readString(in);
+				String to = readString(in);
+				String text = readString(in);
+				if (local.deliverPrivate(from, to, text)) {
+					send(node, encode(PM_DELIVERED, -1, from, to, text));
+				} else {
+					send(node, encode(PM_STORED, -1, from, to, local.storePrivate(from, to, text)));
+				}
+				break;
+			}
+			case PM_DELIVERED:
+				local.privateDelivered(readString(in), readString(in), readString(in));
+				break;
+			case PM_STORED:
+				local.privateStored(readString(in), readString(in), readString(in));
+				break;
+			case PM_FAILED:
+				local.privateFailed(readString(in), readString(in), readString(in));
+				break;
+			default:
+				LOGGER.warning("Ignoring cluster message of unknown type " + type + " from node " + fromNode);
+		}
+	}
+
+	@Override
+	public void onPeerUp(int node) {
+		List<byte[]> entries = new ArrayList<>();
+		for (String room : local.rooms()) {
+			if (ring.owner(room) == node) {
+				entries.add(encode(SUBSCRIBE, -1, room));
+			}
+		}
+		for (String user : local.users()) {
+			if (ring.owner(user) == node) {
+				entries.add(encode(ONLINE, -1, user));
+			}
+		}
+		for (byte[] entry : entries) {
+			bus.send(node, entry);
+		}
+	}
+
+	@Override
+	public void onPeerDown(int node) {
+		for (String room : roomNodes.keySet()) {
+			roomNodes.computeIfPresent(room, (key, nodes) -> {
+				nodes.remove(node);
+				return nodes.isEmpty() ? null : nodes;
+			});
+		}
+		userNodes.forEach((user, owner) -> {
+			if (owner == node) {
+				userNodes.remove(user, owner);
+			}
+		});
+	}
+
+	private static byte[] encode(byte type, int node, String... fields) {
+		byte[][] encoded = new byte[fields.length][];
+		int length = 1 + 4;
+		for (int i = 0; i < fields.length; i++) {
+			encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+			length += 4 + encoded[i].length;
+		}
+		ByteBuffer out = ByteBuffer.allocate(length).put(type).putInt(node);
+		for (byte[] field : encoded) {
+			out.putInt(field.length).put(field);
+		}
+		return out.array();
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return value;
+	}
+}
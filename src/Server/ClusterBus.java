@@ -0,0 +1,33 @@
+package Server;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// Point-to-point messaging between the nodes of a cluster. Cluster only needs
+// best-effort delivery that keeps the order of messages to any one peer; a
+// message to a peer that is down may be lost, and onPeerUp() is the signal to
+// re-send whatever state that peer is supposed to hold.
+interface ClusterBus extends Closeable {
+	interface Receiver {
+		// Called from a bus thread; the array is owned by the receiver
+		void onMessage(int fromNode, byte[] message);
+
+		// Messages to node can flow again (after startup or a reconnect)
+		void onPeerUp(int node);
+
+		// Messages from node have stopped; anything it told us may be stale
+		void onPeerDown(int node);
+	}
+
+	void start(Receiver receiver) throws IOException;
+
+	// Never blocks; drops the message if the peer's queue is full
+	void send(int node, byte[] message);
+
+	int peersUp();
+
+	long dropped();
+
+	@Override
+	void close();
+}
@@ -0,0 +1,152 @@
+package Server;
+
+// Cursor over one text-protocol command line: "WORD arg1 rest..." with words
+// separated by runs of whitespace, as split("\\s+") would see them. The command
+// word is resolved through a table keyed by its length without upper-casing it,
+// and arguments come out as substrings of the line (or as numbers parsed in
+// place), so parsing a command allocates nothing beyond the arguments it hands
+// back. One instance per connection, reused for every line; not thread-safe.
+final class CommandLine {
+	// Chat commands by the length of their word; null where no command has that length
+	private static final Metrics.Command[][] BY_LENGTH = {
+			null, null,
+			{ Metrics.Command.PM },
+			null,
+			{ Metrics.Command.JOIN },
+			{ Metrics.Command.LEAVE },
+			{ Metrics.Command.LOGOUT },
+			{ Metrics.Command.MESSAGE, Metrics.Command.HISTORY },
+			null,
+			{ Metrics.Command.SUBSCRIBE, Metrics.Command.INBOX_ACK },
+			null,
+			{ Metrics.Command.UNSUBSCRIBE },
+	};
+
+	private String line;
+	private int position;
+
+	// Starts on a new line and returns its command word's kind; OTHER if unknown
+	Metrics.Command reset(String line) {
+		this.line = line;
+		int end = skipWord(0);
+		position = skipSpace(end);
+		return lookup(line, 0, end);
+	}
+
+	// True once only trailing whitespace is left
+	boolean atEnd() {
+		return position >= line.length();
+	}
+
+	// The next word, or null if there is none
+	String next() {
+		if (atEnd()) return null;
+		int start = position;
+		int end = skipWord(start);
+		position = skipSpace(end);
+		return line.substring(start, end);
+	}
+
+	// The remainder of the line from the next word on, verbatim, or null if there
+	// is no next word. Unlike the third element of split("\\s+", 3), blank
+	// arguments count as missing rather than as empty strings.
+	String rest() {
+		if (atEnd()) return null;
+		String rest = line.substring(position);
+		position = line.length();
+		return rest;
+	}
+
+	// The next word as a number, or fallback if there is no next word; throws
+	// NumberFormatException if the word is not a number
+	long nextLong(long fallback) {
+		if (atEnd()) return fallback;
+		int start = position;
+		int end = skipWord(start);
+		position = skipSpace(end);
+		return Long.parseLong(line, start, end, 10);
+	}
+
+	int nextInt(int fallback) {
+		if (atEnd()) return fallback;
+		int start = position;
+		int end = skipWord(start);
+		position = skipSpace(end);
+		return Integer.parseInt(line, start, end, 10);
+	}
+
+	private int skipWord(int index) {
+		while (index < line.length() && !isSpace(line.charAt(index))) index++;
+		return index;
+	}
+
+	private int skipSpace(int index) {
+		while (index < line.length() && isSpace(line.charAt(index))) index++;
+		return index;
+	}
+
+	// The \s class of java.util.regex
+	private static boolean isSpace(char c) {
+		return c == ' ' || c >= '\t' && c <= '\r';
+	}
+
+	private static Metrics.Command lookup(String line, int start, int end) {
+		int length = end - start;
+		if (length >= BY_LENGTH.length || BY_LENGTH[length] == null) return Metrics.Command.OTHER;
+		for (Metrics.Command command : BY_LENGTH[length]) {
+			if (line.regionMatches(true, start, command.name(), 0, length)) return command;
+		}
+		return Metrics.Command.OTHER;
+	}
+
+	// Drops ASCII control characters (\p{Cntrl}: 0x00-0x1F and 0x7F) and surrounding
+	// whitespace, like replaceAll("\\p{Cntrl}", "").trim(). Returns the input itself
+	// when there is nothing to remove, which is the common case.
+	static String sanitize(String input) {
+		if (input == null) return null;
+		int start = 0;
+		int end = input.length();
+		while (start < end && isTrimmed(input.charAt(start))) start++;
+		while (end > start && isTrimmed(input.charAt(end - 1))) end--;
+		int firstControl = -1;
+		for (int i = start; i < end; i++) {
+			if (isControl(input.charAt(i))) {
+				firstControl = i;
+				break;
+			}
+		}
+		if (firstControl < 0) {
+			return start == 0 && end == input.length() ? input : input.substring(start, end);
+		}
+		char[] kept = new char[end - start];
+		input.getChars(start, firstControl, kept, 0);
+		int length = firstControl - start;
+		for (int i = firstControl + 1; i < end; i++) {
+			char c = input.charAt(i);
+			if (!isControl(c)) kept[length++] = c;
+		}
+		return new String(kept, 0, length);
+	}
+
+	// Once control characters are gone, trim() only has spaces left to strip
+	private static boolean isTrimmed(char c) {
+		return c == ' ' || isControl(c);
+	}
+
+	private static boolean isControl(char c) {
+		return c < 0x20 || c == 0x7F;
+	}
+
+	// Same as matches("[a-zA-Z0-9._-]{minLength,maxLength}")
+	static boolean isValidUsername(String username, int minLength, int maxLength) {
+		if (username == null || username.length() < minLength || username.length() > maxLength) return false;
+		for (int i = 0; i < username.length(); i++) {
+			char c = username.charAt(i);
+			if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+					|| c == '.' || c == '_' || c == '-')) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,45 @@
+package Server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// Transport seen by a ClientHandler. Implementations must allow sendFrame() and
+// close() from any thread, since other clients' handlers deliver broadcasts and PMs.
+interface Connection {
+	// Queues an encoded line for delivery; never blocks on the peer. A broadcast
+	// hands the same array to every recipient, so it must never be modified.
+	// Once closed, frames are still queued (see OutboundQueue.hold()) until the
+	// handler's onDisconnect() has taken what it wants to park.
+	void sendFrame(byte[] frame);
+
+	default void send(String line) {
+		sendFrame(encodeLine(line));
+	}
+
+	void close();
+
+	OutboundQueue outbound();
+
+	// Runs then once step has completed, in order with this connection's commands.
+	// A thread-per-connection transport can simply wait for it; a pooled one must
+	// hand then back to the connection's own executor instead of holding a worker.
+	default void whenDone(CompletableFuture<?> step, Runnable then) {
+		try {
+			step.join();
+		} catch (CompletionException | CancellationException e) {
+			// then() looks at the outcome itself
+		}
+		then.run();
+	}
+
+	// Text clients split on '\n', so line breaks (possible in messages that came in
+	// over BinaryProtocol) are flattened rather than allowed to forge extra lines
+	static byte[] encodeLine(String line) {
+		if (line.indexOf('\n') >= 0 || line.indexOf('\r') >= 0) {
+			line = line.replace('\n', ' ').replace('\r', ' ');
+		}
+		return (line + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+}
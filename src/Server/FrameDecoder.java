@@ -0,0 +1,138 @@
+package Server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Splits a connection's inbound bytes into commands for either wire protocol.
+// Starts out on '\n'-terminated lines; if the first line is BinaryProtocol.HELLO
+// it switches to length-prefixed frames at exactly that byte, so a client that
+// pipelines frames right behind its hello loses nothing. Not thread-safe: each
+// connection feeds its own decoder from its reading thread.
+final class FrameDecoder {
+	// Same limit for a text line and a binary frame
+	static final int MAX_COMMAND_BYTES = 64 * 1024;
+
+	interface Sink {
+		void onLine(String line);
+
+		void onBinaryHello();
+
+		// The frame body (opcode and payload), owned by the sink from now on
+		void onFrame(byte[] frame);
+	}
+
+	private final Sink sink;
+	private boolean binary;
+	private boolean firstLine = true;
+
+	// Bytes of a command that has not fully arrived yet; null while idle
+	private byte[] partial;
+	private int partialLength;
+
+	FrameDecoder(Sink sink) {
+		this.sink = sink;
+	}
+
+	// Returns false if the peer broke framing; the connection should be closed
+	boolean feed(byte[] bytes, int offset, int length) {
+		int end = offset + length;
+		int start = offset;
+		while (start < end) {
+			int consumed = binary ? nextFrame(bytes, start, end) : nextLine(bytes, start, end);
+			if (consumed < 0) return false;
+			if (consumed == 0) break;
+			start += consumed;
+		}
+		if (start < end) {
+			appendPartial(bytes, start, end - start);
+			return partialLength <= MAX_COMMAND_BYTES + 4;
+		}
+		return true;
+	}
+
+	// Bytes used from [start, end), 0 if the line is incomplete, -1 if oversized
+	private int nextLine(byte[] bytes, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (bytes[i] != '\n') continue;
+			String line;
+			if (partial == null) {
+				line = decodeLine(bytes, start, i - start);
+			} else {
+				appendPartial(bytes, start, i - start);
+				line = decodeLine(partial, 0, partialLength);
+				clearPartial();
+			}
+			if (line == null) return -1;
+			if (firstLine && line.equals(BinaryProtocol.HELLO)) {
+				binary = true;
+				sink.onBinaryHello();
+			} else {
+				sink.onLine(line);
+			}
+			firstLine = false;
+			return i + 1 - start;
+		}
+		return 0;
+	}
+
+	private String decodeLine(byte[] bytes, int offset, int length) {
+		if (length > MAX_COMMAND_BYTES) return null;
+		// readLine() also accepts "\r\n"
+		if (length > 0 && bytes[offset + length - 1] == '\r') {
+			length--;
+		}
+		return new String(bytes, offset, length, StandardCharsets.UTF_8);
+	}
+
+	// Same contract as nextLine()
+	private int nextFrame(byte[] bytes, int start, int end) {
+		if (partial != null) {
+			// Top up the partial frame: first its header, then just enough body
+			if (partialLength < 4) {
+				int take = Math.min(4 - partialLength, end - start);
+				appendPartial(bytes, start, take);
+				return take;
+			}
+			int length = frameLength(partial, 0);
+			if (!validFrameLength(length)) return -1;
+			int take = Math.min(4 + length - partialLength, end - start);
+			appendPartial(bytes, start, take);
+			if (partialLength == 4 + length) {
+				byte[] frame = Arrays.copyOfRange(partial, 4, partialLength);
+				clearPartial();
+				sink.onFrame(frame);
+			}
+			return take;
+		}
+		if (end - start < 4) return 0;
+		int length = frameLength(bytes, start);
+		if (!validFrameLength(length)) return -1;
+		if (end - start - 4 < length) return 0;
+		sink.onFrame(Arrays.copyOfRange(bytes, start + 4, start + 4 + length));
+		return 4 + length;
+	}
+
+	private static int frameLength(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+				| (bytes[offset + 2] & 0xFF) << 8 | bytes[offset + 3] & 0xFF;
+	}
+
+	private static boolean validFrameLength(int length) {
+		return length > 0 && length <= MAX_COMMAND_BYTES;
+	}
+
+	private void appendPartial(byte[] bytes, int offset, int length) {
+		if (partial == null) {
+			partial = new byte[Math.max(256, length)];
+		} else if (partialLength + length > partial.length) {
+			partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + length));
+		}
+		System.arraycopy(bytes, offset, partial, partialLength, length);
+		partialLength += length;
+	}
+
+	private void clearPartial() {
+		partial = null;
+		partialLength = 0;
+	}
+}
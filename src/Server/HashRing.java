@@ -0,0 +1,54 @@
+package Server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Consistent hashing over a fixed set of node ids. Each node is placed on the
+// ring at VIRTUAL_NODES points so keys spread evenly, and a key belongs to the
+// first point at or after its hash. The hash is computed from the UTF-8 bytes
+// rather than String.hashCode() so every JVM agrees on the placement.
+final class HashRing {
+	private static final int VIRTUAL_NODES = 128;
+
+	private final long[] points;
+	private final int[] owners;
+
+	HashRing(int nodes) {
+		long[][] placed = new long[nodes * VIRTUAL_NODES][];
+		for (int node = 0; node < nodes; node++) {
+			for (int v = 0; v < VIRTUAL_NODES; v++) {
+				placed[node * VIRTUAL_NODES + v] = new long[] { hash("node-" + node + "#" + v), node };
+			}
+		}
+		Arrays.sort(placed, (a, b) -> Long.compare(a[0], b[0]));
+		points = new long[placed.length];
+		owners = new int[placed.length];
+		for (int i = 0; i < placed.length; i++) {
+			points[i] = placed[i][0];
+			owners[i] = (int) placed[i][1];
+		}
+	}
+
+	int owner(String key) {
+		int i = Arrays.binarySearch(points, hash(key));
+		if (i < 0) {
+			i = -i - 1;
+		}
+		return owners[i == points.length ? 0 : i];
+	}
+
+	// 64-bit FNV-1a, then MurmurHash3's finalizer to spread the short inputs
+	static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			h ^= b & 0xFF;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
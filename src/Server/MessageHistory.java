@@ -0,0 +1,509 @@
+package Server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+// Per-room message log. Each room gets a directory of segments; a segment is a
+// log file of records plus an index file with one fixed-size entry per message
+// (timestamp, position, length), so message id N is found by arithmetic rather
+// than a scan. The newest segment of each room is memory-mapped for appending;
+// readers go through FileChannel, which sees the same page cache.
+//
+// Broadcasts only enqueue, taking the room's next id from a counter as they do,
+// so the live copy of a message can carry the id history will know it by. Rooms
+// already on disk are opened (not mapped) at startup, which loads their counters
+// so a broadcast never touches the disk, and puts them in front of the sweep even
+// if nobody uses them again. A single writer thread drains the queue in batches,
+// opens a room's log when it first needs it, rolls full segments, and every so often
+// drops segments older than the retention period, unmaps rooms that have gone
+// quiet and forgets rooms quiet for the whole retention period (they are opened
+// again from disk if used). If the queue is full the message is delivered live
+// but left out of history, without an id. Ids a failed write has lost leave a
+// gap, and the next message starts a new segment.
+//
+// Log record: long id, int sender byte count, sender, message (UTF-8)
+final class MessageHistory implements Closeable {
+	private static final Logger LOGGER = Logger.getLogger(MessageHistory.class.getName());
+
+	private static final int LOG_BYTES = 4 * 1024 * 1024;
+	private static final int INDEX_ENTRY_BYTES = 16;
+	private static final int INDEX_ENTRIES = 64 * 1024;
+	private static final int RECORD_HEADER_BYTES = 12;
+	private static final int QUEUE_CAPACITY = 64 * 1024;
+	private static final int MAX_BATCH = 1024;
+	private static final long SWEEP_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	private static final long IDLE_UNMAP_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+	static final class Entry {
+		final long id;
+		final long timestamp;
+		final String sender;
+		final String message;
+
+		Entry(long id, long timestamp, String sender, String message) {
+			this.id = id;
+			this.timestamp = timestamp;
+			this.sender = sender;
+			this.message = message;
+		}
+	}
+
+	private static final class Pending {
+		final String room;
+		final long id;
+		final byte[] sender;
+		final byte[] message;
+		final long timestamp;
+
+		Pending(String room, long id, byte[] sender, byte[] message, long timestamp) {
+			this.room = room;
+			this.id = id;
+			this.sender = sender;
+			this.message = message;
+			this.timestamp = timestamp;
+		}
+	}
+
+	private static final Pending STOP = new Pending(null, 0, null, null, 0);
+
+	private final Path root;
+	private final long retentionMillis;
+	private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	// Open logs, by room name; the writer adds and evicts them, readers may add
+	private final ConcurrentMap<String, RoomLog> rooms = new ConcurrentHashMap<>();
+	// Last id handed out, per room with history; a long per room, kept for good
+	// so ids never go backwards
+	private final ConcurrentMap<String, IdCounter> lastIds = new ConcurrentHashMap<>();
+	private final LongAdder dropped = new LongAdder();
+	private final Thread writer;
+
+	private static final class IdCounter {
+		// Guarded by this IdCounter
+		long lastQueuedId;
+
+		IdCounter(long lastQueuedId) {
+			this.lastQueuedId = lastQueuedId;
+		}
+	}
+
+	MessageHistory(Path root, long retentionMillis) throws IOException {
+		this.root = Files.createDirectories(root);
+		this.retentionMillis = retentionMillis;
+		try (Stream<Path> dirs = Files.list(this.root)) {
+			for (Path dir : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+				String room = roomName(dir.getFileName().toString());
+				RoomLog log = new RoomLog(dir);
+				rooms.put(room, log);
+				lastIds.put(room, new IdCounter(log.nextId - 1));
+			}
+		}
+		this.writer = new Thread(this::writeLoop, "message-history");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	// Hot path: never waits for the writer or the disk. Returns the message's id,
+	// or 0 if it is left out of history.
+	long append(String room, String sender, String message) {
+		byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+		byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+		if (RECORD_HEADER_BYTES + senderBytes.length + messageBytes.length > LOG_BYTES) {
+			LOGGER.warning("Message too large for history in " + room);
+			return 0;
+		}
+		IdCounter counter = lastIds.get(room);
+		if (counter == null) {
+			counter = lastIds.computeIfAbsent(room, name -> new IdCounter(0));
+		}
+		// Queued in id order, so the writer sees each room's ids ascending
+		synchronized (counter) {
+			long id = counter.lastQueuedId + 1;
+			if (!queue.offer(new Pending(room, id, senderBytes, messageBytes, System.currentTimeMillis()))) {
+				dropped.increment();
+				return 0;
+			}
+			counter.lastQueuedId = id;
+			return id;
+		}
+	}
+
+	long dropped() {
+		return dropped.sum();
+	}
+
+	// Up to limit messages with id < beforeId, oldest first; beforeId <= 0 means the newest
+	List<Entry> before(String room, long beforeId, int limit) {
+		try {
+			RoomLog log = room(room, false);
+			return log == null ? new ArrayList<>() : log.read(beforeId, limit);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not read history for " + room, e);
+			return new ArrayList<>();
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			queue.put(STOP);
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Opens the log if needed; only the writer creates a room's directory
+	private RoomLog room(String room, boolean create) throws IOException {
+		RoomLog log = rooms.get(room);
+		if (log != null) return log;
+		Path dir = root.resolve(directoryName(room));
+		if (!create && !Files.isDirectory(dir)) return null;
+		try {
+			return rooms.computeIfAbsent(room, name -> {
+				try {
+					return new RoomLog(Files.createDirectories(dir));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	// Room names come from clients; keep only characters that are safe in any file name
+	static String directoryName(String room) {
+		StringBuilder name = new StringBuilder(room.length());
+		for (byte b : room.getBytes(StandardCharsets.UTF_8)) {
+			if (b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9' || b == '-' || b == '_') {
+				name.append((char) b);
+			} else {
+				name.append('%').append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+		}
+		return name.toString();
+	}
+
+	// The room a directoryName() belongs to
+	static String roomName(String directoryName) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(directoryName.length());
+		for (int i = 0; i < directoryName.length(); i++) {
+			char c = directoryName.charAt(i);
+			if (c == '%' && i + 2 < directoryName.length()) {
+				bytes.write(Integer.parseInt(directoryName.substring(i + 1, i + 3), 16));
+				i += 2;
+			} else {
+				bytes.write(c);
+			}
+		}
+		return bytes.toString(StandardCharsets.UTF_8);
+	}
+
+	private void writeLoop() {
+		List<Pending> batch = new ArrayList<>(MAX_BATCH);
+		long lastSweep = System.currentTimeMillis();
+		boolean stopping = false;
+		while (!stopping) {
+			try {
+				Pending first = queue.poll(SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch, MAX_BATCH - 1);
+				}
+				stopping = batch.remove(STOP);
+				if (!batch.isEmpty()) {
+					long started = System.nanoTime();
+					for (Pending pending : batch) {
+						write(pending);
+					}
+					Metrics.HISTORY_WRITE_NANOS.record(System.nanoTime() - started);
+				}
+				long now = System.currentTimeMillis();
+				if (stopping || now - lastSweep >= SWEEP_INTERVAL_MILLIS) {
+					sweep(now, stopping);
+					lastSweep = now;
+				}
+			} catch (InterruptedException e) {
+				stopping = true;
+			} catch (IOException | RuntimeException e) {
+				LOGGER.log(Level.SEVERE, "Message history write failed", e);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	// Writer thread only. A room whose log can't be opened loses the message,
+	// leaving a gap in its ids.
+	private void write(Pending pending) throws IOException {
+		RoomLog log;
+		try {
+			log = room(pending.room, true);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not open history for " + pending.room, e);
+			dropped.increment();
+			return;
+		}
+		log.append(pending);
+	}
+
+	// Writer thread only
+	private void sweep(long now, boolean closing) throws IOException {
+		for (Map.Entry<String, RoomLog> room : rooms.entrySet()) {
+			RoomLog log = room.getValue();
+			log.dropExpired(now - retentionMillis);
+			long idle = now - log.lastUsed;
+			if (closing || idle >= IDLE_UNMAP_MILLIS) {
+				log.unmap();
+			}
+			// Everything but its newest segment has expired by now
+			if (idle >= Math.max(retentionMillis, IDLE_UNMAP_MILLIS)) {
+				rooms.remove(room.getKey(), log);
+			}
+		}
+	}
+
+	private static final class Segment {
+		final long baseId;
+		final Path logPath;
+		final Path indexPath;
+		volatile int count;
+		volatile long lastTimestamp;
+		int writePosition;
+
+		Segment(Path dir, long baseId) {
+			this.baseId = baseId;
+			String name = String.format("%020d", baseId);
+			this.logPath = dir.resolve(name + ".log");
+			this.indexPath = dir.resolve(name + ".idx");
+		}
+	}
+
+	private final class RoomLog {
+		private final Path dir;
+		// Ordered by first message id; the last one is the segment being appended to
+		private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+		// Ids below this are readable. Published after the bytes are written.
+		private volatile long nextId;
+		private MappedByteBuffer log;
+		private MappedByteBuffer index;
+		// Last append or read
+		private volatile long lastUsed = System.currentTimeMillis();
+
+		RoomLog(Path dir) throws IOException {
+			this.dir = dir;
+			try (Stream<Path> files = Files.list(dir)) {
+				files.map(path -> path.getFileName().toString())
+						.filter(name -> name.endsWith(".idx"))
+						.forEach(name -> {
+							long baseId = Long.parseLong(name.substring(0, name.length() - 4));
+							segments.put(baseId, new Segment(dir, baseId));
+						});
+			}
+			for (Segment segment : segments.values()) {
+				recover(segment, segment == segments.lastEntry().getValue());
+			}
+			Map.Entry<Long, Segment> last = segments.lastEntry();
+			nextId = last == null ? 1 : last.getValue().baseId + last.getValue().count;
+		}
+
+		// Counts the segment's messages. Only the newest segment can have a torn
+		// tail, so only there is each index entry checked against its record; an
+		// older one was sealed, its index trimmed to its entries, so its last entry
+		// is all that needs reading.
+		private void recover(Segment segment, boolean newest) throws IOException {
+			try (FileChannel indexFile = FileChannel.open(segment.indexPath, StandardOpenOption.READ);
+				 FileChannel logFile = FileChannel.open(segment.logPath, StandardOpenOption.READ)) {
+				int entries = (int) Math.min(INDEX_ENTRIES, indexFile.size() / INDEX_ENTRY_BYTES);
+				if (!newest) {
+					segment.count = entries;
+					if (entries > 0) {
+						segment.lastTimestamp = readFully(indexFile, (long) (entries - 1) * INDEX_ENTRY_BYTES, 8).getLong(0);
+					}
+					return;
+				}
+				ByteBuffer entriesBuffer = readFully(indexFile, 0, entries * INDEX_ENTRY_BYTES);
+				ByteBuffer id = ByteBuffer.allocate(8);
+				int count = 0;
+				for (; count < entries; count++) {
+					int base = count * INDEX_ENTRY_BYTES;
+					int position = entriesBuffer.getInt(base + 8);
+					int length = entriesBuffer.getInt(base + 12);
+					if (length < RECORD_HEADER_BYTES) break;
+					id.clear();
+					if (logFile.read(id, position) != 8 || id.getLong(0) != segment.baseId + count) break;
+					segment.lastTimestamp = entriesBuffer.getLong(base);
+					segment.writePosition = position + length;
+				}
+				segment.count = count;
+			}
+		}
+
+		// Writer thread only. A segment's ids have no gaps, so one after a gap
+		// starts a new segment.
+		void append(Pending pending) throws IOException {
+			byte[] sender = pending.sender;
+			byte[] message = pending.message;
+			int length = RECORD_HEADER_BYTES + sender.length + message.length;
+			long id = pending.id;
+
+			Segment segment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+			if (segment == null || id != nextId || segment.count == INDEX_ENTRIES || segment.writePosition + length > LOG_BYTES) {
+				segment = roll(segment, id);
+			} else if (log == null) {
+				map(segment);
+			}
+
+			int position = segment.writePosition;
+			log.putLong(position, id);
+			log.putInt(position + 8, sender.length);
+			log.put(position + RECORD_HEADER_BYTES, sender);
+			log.put(position + RECORD_HEADER_BYTES + sender.length, message);
+
+			int entry = segment.count * INDEX_ENTRY_BYTES;
+			index.putLong(entry, pending.timestamp);
+			index.putInt(entry + 8, position);
+			index.putInt(entry + 12, length);
+
+			segment.writePosition = position + length;
+			segment.lastTimestamp = pending.timestamp;
+			segment.count++;
+			nextId = id + 1;
+			lastUsed = System.currentTimeMillis();
+		}
+
+		private Segment roll(Segment full, long baseId) throws IOException {
+			if (full != null) {
+				seal(full);
+			}
+			Segment segment = new Segment(dir, baseId);
+			segments.put(segment.baseId, segment);
+			map(segment);
+			return segment;
+		}
+
+		private void map(Segment segment) throws IOException {
+			try (FileChannel logFile = FileChannel.open(segment.logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				 FileChannel indexFile = FileChannel.open(segment.indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				log = logFile.map(FileChannel.MapMode.READ_WRITE, 0, LOG_BYTES);
+				index = indexFile.map(FileChannel.MapMode.READ_WRITE, 0, (long) INDEX_ENTRIES * INDEX_ENTRY_BYTES);
+			}
+		}
+
+		// Flushes the mapped segment and trims its files to what was written
+		private void seal(Segment segment) throws IOException {
+			if (log == null) {
+				map(segment);
+			}
+			log.force();
+			index.force();
+			log = null;
+			index = null;
+			try (FileChannel logFile = FileChannel.open(segment.logPath, StandardOpenOption.WRITE);
+				 FileChannel indexFile = FileChannel.open(segment.indexPath, StandardOpenOption.WRITE)) {
+				logFile.truncate(segment.writePosition);
+				indexFile.truncate((long) segment.count * INDEX_ENTRY_BYTES);
+			}
+		}
+
+		// Writer thread only
+		void unmap() {
+			if (log != null) {
+				log.force();
+				index.force();
+				log = null;
+				index = null;
+			}
+		}
+
+		// Writer thread only. The newest segment always stays.
+		void dropExpired(long cutoff) throws IOException {
+			Map.Entry<Long, Segment> oldest;
+			while ((oldest = segments.firstEntry()) != null && oldest.getValue() != segments.lastEntry().getValue()
+					&& oldest.getValue().lastTimestamp < cutoff) {
+				Segment segment = segments.remove(oldest.getKey());
+				Files.deleteIfExists(segment.logPath);
+				Files.deleteIfExists(segment.indexPath);
+			}
+		}
+
+		List<Entry> read(long beforeId, int limit) throws IOException {
+			lastUsed = System.currentTimeMillis();
+			long end = beforeId <= 0 || beforeId > nextId ? nextId : beforeId;
+			List<Entry> result = new ArrayList<>(Math.min(limit, 256));
+			Map.Entry<Long, Segment> first = segments.firstEntry();
+			if (first == null || limit <= 0) return result;
+			// Anything before the oldest segment is past the retention period
+			if (end <= first.getKey()) return result;
+			long start = Math.max(first.getKey(), end - limit);
+			readBetween(start, end, result);
+			return result;
+		}
+
+		// Entries [start, end). The writer may drop the oldest segments while this
+		// runs; what they held has expired, so it is left out.
+		private void readBetween(long start, long end, List<Entry> into) throws IOException {
+			Long floor = segments.floorKey(start);
+			Map<Long, Segment> range = floor != null
+					? segments.subMap(floor, true, end, false)
+					: segments.headMap(end, false);
+			for (Segment segment : range.values()) {
+				long from = Math.max(start, segment.baseId);
+				long to = Math.min(end, segment.baseId + segment.count);
+				if (from < to) {
+					try {
+						readRange(segment, (int) (from - segment.baseId), (int) (to - segment.baseId), into);
+					} catch (NoSuchFileException e) {
+						// Dropped since the range was taken
+					}
+				}
+			}
+		}
+
+		// Reads entries [from, to) of a segment with one read per file
+		private void readRange(Segment segment, int from, int to, List<Entry> into) throws IOException {
+			try (FileChannel indexFile = FileChannel.open(segment.indexPath, StandardOpenOption.READ);
+				 FileChannel logFile = FileChannel.open(segment.logPath, StandardOpenOption.READ)) {
+				ByteBuffer entries = readFully(indexFile, (long) from * INDEX_ENTRY_BYTES, (to - from) * INDEX_ENTRY_BYTES);
+				int firstPosition = entries.getInt(8);
+				int lastEntry = (to - from - 1) * INDEX_ENTRY_BYTES;
+				int endPosition = entries.getInt(lastEntry + 8) + entries.getInt(lastEntry + 12);
+				ByteBuffer records = readFully(logFile, firstPosition, endPosition - firstPosition);
+
+				for (int i = 0; i < to - from; i++) {
+					int base = i * INDEX_ENTRY_BYTES;
+					int offset = entries.getInt(base + 8) - firstPosition;
+					int length = entries.getInt(base + 12);
+					int senderBytes = records.getInt(offset + 8);
+					String sender = new String(records.array(), offset + RECORD_HEADER_BYTES, senderBytes, StandardCharsets.UTF_8);
+					String message = new String(records.array(), offset + RECORD_HEADER_BYTES + senderBytes,
+							length - RECORD_HEADER_BYTES - senderBytes, StandardCharsets.UTF_8);
+					into.add(new Entry(records.getLong(offset), entries.getLong(base), sender, message));
+				}
+			}
+		}
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) break;
+		}
+		return buffer;
+	}
+}
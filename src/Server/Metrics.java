@@ -0,0 +1,351 @@
+package Server;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+// Process-wide counters and histograms, cheap enough to bump on every message:
+// counters are LongAdders and histograms are striped log2 buckets, so no hot
+// path takes a lock. Everything is exported as a running total (graph rates
+// with the scraper's rate()/delta) plus a few gauges read at scrape time.
+//
+// Two ways to read them: the MBean Yapii:type=Metrics, and a plain-text page
+// in Prometheus exposition format at http://127.0.0.1:<metrics-port>/metrics.
+final class Metrics {
+	private static final Logger LOGGER = Logger.getLogger(Metrics.class.getName());
+	// Rooms beyond this many (largest first) are left out of room_members
+	private static final int MAX_ROOM_SAMPLES = 50;
+
+	enum Command {
+		LOGIN, REGISTER, RESUME, MESSAGE, JOIN, LEAVE, PM, LOGOUT, HISTORY, SUBSCRIBE, UNSUBSCRIBE, INBOX_ACK, OTHER
+	}
+
+	// Lock-free histogram: bucket i counts values in [2^(i-1), 2^i), with zero in
+	// bucket 0. Quantiles are good to a factor of two, plenty to see a regression.
+	static final class Histogram {
+		private final LongAdder[] buckets = new LongAdder[64];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long value) {
+			if (value < 0) value = 0;
+			buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+			count.increment();
+			sum.add(value);
+			if (value > max.get()) {
+				max.accumulateAndGet(value, Math::max);
+			}
+		}
+
+		// Upper bound of the bucket holding the given quantile
+		long quantile(double q) {
+			long[] counts = new long[buckets.length];
+			long total = 0;
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = buckets[i].sum();
+				total += counts[i];
+			}
+			long rank = (long) Math.ceil(q * total);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && counts[i] > 0) {
+					return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+				}
+			}
+			return 0;
+		}
+	}
+
+	static final LongAdder CONNECTIONS_ACCEPTED = new LongAdder();
+	static final LongAdder CONNECTIONS_REJECTED = new LongAdder();
+	static final LongAdder SLOW_CLIENT_DISCONNECTS = new LongAdder();
+	static final LongAdder IDLE_DISCONNECTS = new LongAdder();
+	static final LongAdder PINGS_SENT = new LongAdder();
+	static final LongAdder SESSIONS_RESUMED = new LongAdder();
+	static final LongAdder SESSIONS_EXPIRED = new LongAdder();
+	static final LongAdder SESSIONS_EVICTED = new LongAdder();
+	private static final LongAdder[] COMMANDS_IN = new LongAdder[Command.values().length];
+	static final LongAdder FRAMES_OUT = new LongAdder();
+	static final LongAdder BYTES_OUT = new LongAdder();
+	static final LongAdder FRAMES_DROPPED = new LongAdder();
+	static final Histogram BROADCAST_FANOUT = new Histogram();
+	static final Histogram ROOMS_REJOINED = new Histogram();
+	static final LongAdder PRESENCE_CHANGES = new LongAdder();
+	static final LongAdder PRESENCE_BATCHES = new LongAdder();
+	static final LongAdder INBOX_STORED = new LongAdder();
+	static final LongAdder INBOX_DELIVERED = new LongAdder();
+	static final LongAdder INBOX_EXPIRED = new LongAdder();
+
+	static final LongAdder LOGINS_SUCCEEDED = new LongAdder();
+	static final LongAdder LOGINS_FAILED = new LongAdder();
+	static final LongAdder LOCKOUTS = new LongAdder();
+	static final LongAdder AUTH_REJECTED = new LongAdder();
+	static final Histogram AUTH_QUEUE_WAIT_NANOS = new Histogram();
+	static final Histogram AUTH_HASH_NANOS = new Histogram();
+
+	static final Histogram JOURNAL_FLUSH_NANOS = new Histogram();
+	static final Histogram JOURNAL_BATCH_RECORDS = new Histogram();
+	static final Histogram ACCOUNT_CHECKPOINT_NANOS = new Histogram();
+	static final Histogram HISTORY_WRITE_NANOS = new Histogram();
+
+	static {
+		for (int i = 0; i < COMMANDS_IN.length; i++) {
+			COMMANDS_IN[i] = new LongAdder();
+		}
+	}
+
+	private static final class Gauge {
+		final String name;
+		final String label;
+		final Supplier<Map<String, Long>> values;
+
+		Gauge(String name, String label, Supplier<Map<String, Long>> values) {
+			this.name = name;
+			this.label = label;
+			this.values = values;
+		}
+	}
+
+	private static final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+	private Metrics() {
+	}
+
+	static void commandIn(Command command) {
+		COMMANDS_IN[command.ordinal()].increment();
+	}
+
+	static void gauge(String name, LongSupplier value) {
+		gauges.add(new Gauge(name, null, () -> Collections.singletonMap(null, value.getAsLong())));
+	}
+
+	static void gauge(String name, String label, String labelValue, LongSupplier value) {
+		gauges.add(new Gauge(name, label, () -> Collections.singletonMap(labelValue, value.getAsLong())));
+	}
+
+	// One sample per map entry, labelled with its key
+	static void gauges(String name, String label, Supplier<Map<String, Long>> values) {
+		gauges.add(new Gauge(name, label, values));
+	}
+
+	static void pool(String pool, ThreadPoolExecutor executor) {
+		gauge("pool_threads", "pool", pool, executor::getPoolSize);
+		gauge("pool_active_threads", "pool", pool, executor::getActiveCount);
+		gauge("pool_queued_tasks", "pool", pool, () -> executor.getQueue().size());
+		gauge("pool_completed_tasks_total", "pool", pool, executor::getCompletedTaskCount);
+	}
+
+	static void roomMembers(Supplier<Map<String, Integer>> rooms) {
+		gauges("room_members", "room", () -> {
+			Map<String, Integer> all = rooms.get();
+			Map<String, Long> largest = new LinkedHashMap<>();
+			all.entrySet().stream()
+					.sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+					.limit(MAX_ROOM_SAMPLES)
+					.forEach(room -> largest.put(room.getKey(), (long) room.getValue()));
+			return largest;
+		});
+	}
+
+	private interface Sink {
+		void sample(String name, String label, String labelValue, long value);
+	}
+
+	private static void collect(Sink sink) {
+		sink.sample("connections_accepted_total", null, null, CONNECTIONS_ACCEPTED.sum());
+		sink.sample("connections_rejected_total", null, null, CONNECTIONS_REJECTED.sum());
+		sink.sample("slow_client_disconnects_total", null, null, SLOW_CLIENT_DISCONNECTS.sum());
+		sink.sample("idle_disconnects_total", null, null, IDLE_DISCONNECTS.sum());
+		sink.sample("pings_sent_total", null, null, PINGS_SENT.sum());
+		sink.sample("sessions_resumed_total", null, null, SESSIONS_RESUMED.sum());
+		sink.sample("sessions_expired_total", null, null, SESSIONS_EXPIRED.sum());
+		sink.sample("sessions_evicted_total", null, null, SESSIONS_EVICTED.sum());
+		for (Command command : Command.values()) {
+			sink.sample("commands_in_total", "command", command.name(), COMMANDS_IN[command.ordinal()].sum());
+		}
+		sink.sample("frames_out_total", null, null, FRAMES_OUT.sum());
+		sink.sample("bytes_out_total", null, null, BYTES_OUT.sum());
+		sink.sample("frames_dropped_total", null, null, FRAMES_DROPPED.sum());
+		histogram(sink, "broadcast_fanout", BROADCAST_FANOUT);
+		histogram(sink, "rooms_rejoined", ROOMS_REJOINED);
+		sink.sample("presence_changes_total", null, null, PRESENCE_CHANGES.sum());
+		sink.sample("presence_batches_total", null, null, PRESENCE_BATCHES.sum());
+		sink.sample("inbox_stored_total", null, null, INBOX_STORED.sum());
+		sink.sample("inbox_delivered_total", null, null, INBOX_DELIVERED.sum());
+		sink.sample("inbox_expired_total", null, null, INBOX_EXPIRED.sum());
+		sink.sample("logins_succeeded_total", null, null, LOGINS_SUCCEEDED.sum());
+		sink.sample("logins_failed_total", null, null, LOGINS_FAILED.sum());
+		sink.sample("lockouts_total", null, null, LOCKOUTS.sum());
+		sink.sample("auth_rejected_busy_total", null, null, AUTH_REJECTED.sum());
+		histogram(sink, "auth_queue_wait_nanos", AUTH_QUEUE_WAIT_NANOS);
+		histogram(sink, "auth_hash_nanos", AUTH_HASH_NANOS);
+		histogram(sink, "journal_flush_nanos", JOURNAL_FLUSH_NANOS);
+		histogram(sink, "journal_batch_records", JOURNAL_BATCH_RECORDS);
+		histogram(sink, "account_checkpoint_nanos", ACCOUNT_CHECKPOINT_NANOS);
+		histogram(sink, "history_write_nanos", HISTORY_WRITE_NANOS);
+		for (Gauge gauge : gauges) {
+			for (Map.Entry<String, Long> value : gauge.values.get().entrySet()) {
+				sink.sample(gauge.name, gauge.label, value.getKey(), value.getValue());
+			}
+		}
+	}
+
+	// Quantiles first, so that render() knows the family by the time _count and _sum come
+	private static void histogram(Sink sink, String name, Histogram histogram) {
+		for (String q : new String[] { "0.5", "0.9", "0.99", "0.999" }) {
+			sink.sample(name, "quantile", q, histogram.quantile(Double.parseDouble(q)));
+		}
+		sink.sample(name + "_count", null, null, histogram.count.sum());
+		sink.sample(name + "_sum", null, null, histogram.sum.sum());
+		sink.sample(name + "_max", null, null, histogram.max.get());
+	}
+
+	// Samples are grouped by family, since a family has to be contiguous under its
+	// TYPE line and gauges registered from different places may share a name. A
+	// histogram's _count and _sum belong to its quantile family, a summary.
+	static String render() {
+		Map<String, StringBuilder> families = new LinkedHashMap<>();
+		Set<String> summaries = new HashSet<>();
+		collect((name, label, labelValue, value) -> {
+			String family = name;
+			if ("quantile".equals(label)) {
+				summaries.add(name);
+			} else if (name.endsWith("_count") || name.endsWith("_sum")) {
+				String base = name.substring(0, name.lastIndexOf('_'));
+				if (summaries.contains(base)) {
+					family = base;
+				}
+			}
+			StringBuilder text = families.computeIfAbsent(family, key -> new StringBuilder());
+			text.append("chat_").append(name);
+			if (label != null) {
+				text.append('{').append(label).append("=\"");
+				for (int i = 0; i < labelValue.length(); i++) {
+					char c = labelValue.charAt(i);
+					if (c == '\\' || c == '"') text.append('\\').append(c);
+					else if (c == '\n') text.append("\\n");
+					else text.append(c);
+				}
+				text.append("\"}");
+			}
+			text.append(' ').append(value).append('\n');
+		});
+
+		StringBuilder text = new StringBuilder(8 * 1024);
+		for (Map.Entry<String, StringBuilder> family : families.entrySet()) {
+			String name = family.getKey();
+			String type = summaries.contains(name) ? "summary" : name.endsWith("_total") ? "counter" : "gauge";
+			text.append("# TYPE chat_").append(name).append(' ').append(type).append('\n');
+			text.append(family.getValue());
+		}
+		return text.toString();
+	}
+
+	// Starts the scrape endpoint on the loopback interface and registers the MBean
+	static void serve(int port) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("Yapii:type=Metrics"));
+		} catch (JMException e) {
+			LOGGER.warning("Could not register metrics MBean: " + e.getMessage());
+		}
+		if (port == 0) return;
+		try {
+			HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 16);
+			http.createContext("/metrics", exchange -> {
+				byte[] body = render().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			});
+			http.setExecutor(Executors.newSingleThreadExecutor(task -> {
+				Thread thread = new Thread(task, "metrics-http");
+				thread.setDaemon(true);
+				return thread;
+			}));
+			http.start();
+			LOGGER.info("Metrics at http://" + http.getAddress().getHostString() + ":" + port + "/metrics");
+		} catch (IOException e) {
+			LOGGER.warning("Metrics endpoint disabled: " + e.getMessage());
+		}
+	}
+
+	// Read-only attributes named like the text samples, with a label's value
+	// appended after a dot (commands_in_total.MESSAGE, room_members.GENERAL)
+	private static final class MetricsMBean implements DynamicMBean {
+		private static Map<String, Long> snapshot() {
+			Map<String, Long> values = new LinkedHashMap<>();
+			collect((name, label, labelValue, value) -> values.put(label == null ? name : name + "." + labelValue, value));
+			return values;
+		}
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Long value = snapshot().get(attribute);
+			if (value == null) throw new AttributeNotFoundException(attribute);
+			return value;
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			Map<String, Long> values = snapshot();
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes) {
+				Long value = values.get(attribute);
+				if (value != null) {
+					list.add(new Attribute(attribute, value));
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<>();
+			for (String name : snapshot().keySet()) {
+				attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+			}
+			return new MBeanInfo(Metrics.class.getName(), "Chat server metrics",
+					attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Metrics are read-only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+			throw new ReflectionException(new NoSuchMethodException(actionName));
+		}
+	}
+}
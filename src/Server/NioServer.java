@@ -0,0 +1,349 @@
+package Server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Non-blocking transport: a handful of selector threads own every socket, and the
+// ClientHandler logic runs on a small worker pool, one command at a time
+// per connection. An idle client costs a SelectionKey and a few small objects
+// instead of a parked thread, so tens of thousands of them fit on one box.
+final class NioServer {
+	private static final Logger LOGGER = Logger.getLogger(NioServer.class.getName());
+
+	private static final int READ_BUFFER_BYTES = 64 * 1024;
+	// Stop reading from a client that has this many lines waiting for a worker
+	private static final int MAX_PENDING_LINES = 256;
+
+	private final EventLoop[] loops;
+	private final ExecutorService workers;
+	private final Semaphore connectionSlots;
+	private final ServerConfig config;
+	private volatile boolean running = true;
+	private ServerSocketChannel serverChannel;
+
+	NioServer(ServerConfig config, Semaphore connectionSlots) {
+		this.loops = new EventLoop[config.eventLoops];
+		this.workers = Executors.newFixedThreadPool(config.workerThreads);
+		Metrics.pool("nio-workers", (ThreadPoolExecutor) workers);
+		this.connectionSlots = connectionSlots;
+		this.config = config;
+	}
+
+	// Opens the listening socket and accepts on the calling thread until shutdown
+	void run(int port) throws IOException {
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop();
+			EventLoop loop = loops[i];
+			Metrics.gauge("event_loop_busy_nanos_total", "loop", Integer.toString(i), () -> loop.busyNanos);
+			Thread thread = new Thread(loops[i], "nio-loop-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port), 1024);
+		Server.SECURITY_LOGGER.info("Secure Chat Server started on port " + port
+				+ " (nio, " + loops.length + " event loops)");
+
+		int next = 0;
+		while (running) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (ClosedChannelException e) {
+				break;
+			}
+			if (!connectionSlots.tryAcquire()) {
+				Server.rejectConnection(channel.socket());
+				continue;
+			}
+			Metrics.CONNECTIONS_ACCEPTED.increment();
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				// Finds peers that vanished, for clients too old to answer PING
+				channel.socket().setKeepAlive(true);
+			} catch (IOException e) {
+				LOGGER.warning("Rejecting connection: " + e.getMessage());
+				channel.close();
+				connectionSlots.release();
+				continue;
+			}
+			loops[next].register(channel);
+			next = (next + 1) % loops.length;
+		}
+	}
+
+	void shutdown() {
+		running = false;
+		try {
+			if (serverChannel != null) {
+				serverChannel.close();
+			}
+		} catch (IOException e) {
+			LOGGER.warning("Error closing server channel: " + e.getMessage());
+		}
+		for (EventLoop loop : loops) {
+			if (loop != null) {
+				loop.selector.wakeup();
+			}
+		}
+		workers.shutdownNow();
+	}
+
+	private final class EventLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		// Shared by every connection on this loop; only partial commands are copied out
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+		// Time spent handling events rather than waiting in select(); written by the loop thread only
+		private volatile long busyNanos;
+
+		EventLoop() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		void register(SocketChannel channel) {
+			execute(() -> {
+				try {
+					NioConnection connection = new NioConnection(this, channel);
+					connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+				} catch (IOException e) {
+					LOGGER.warning("Failed to register connection: " + e.getMessage());
+					closeQuietly(channel);
+					connectionSlots.release();
+				}
+			});
+		}
+
+		// Runs the task on this loop's thread
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					LOGGER.log(Level.SEVERE, "Selector failed", e);
+					return;
+				}
+				long busySince = System.nanoTime();
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					NioConnection connection = (NioConnection) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							connection.onReadable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.flush();
+						}
+					} catch (IOException | CancelledKeyException e) {
+						connection.closeNow();
+					}
+				}
+				busyNanos += System.nanoTime() - busySince;
+			}
+
+			for (SelectionKey key : selector.keys()) {
+				((NioConnection) key.attachment()).closeNow();
+			}
+			closeQuietly(selector);
+		}
+	}
+
+	private final class NioConnection implements Connection, FrameDecoder.Sink {
+		private final EventLoop loop;
+		private final SocketChannel channel;
+		private final Server.ClientHandler handler;
+		private final FrameDecoder decoder = new FrameDecoder(this);
+		private final SerialExecutor inbox = new SerialExecutor(workers);
+		private final OutboundQueue outbound;
+		private final AtomicBoolean flushScheduled = new AtomicBoolean();
+		private final AtomicBoolean closed = new AtomicBoolean();
+		private final AtomicInteger pendingLines = new AtomicInteger();
+		private SelectionKey key;
+		// Frame the socket only partly accepted last time; loop thread only
+		private ByteBuffer writing;
+
+		NioConnection(EventLoop loop, SocketChannel channel) {
+			this.loop = loop;
+			this.channel = channel;
+			this.handler = new Server.ClientHandler(this);
+			this.outbound = new OutboundQueue(config.outboundQueueSize, config.overflowPolicy);
+			handler.startIdleTimer();
+		}
+
+		@Override
+		public void sendFrame(byte[] frame) {
+			if (closed.get()) {
+				outbound.hold(frame);
+				return;
+			}
+			if (!outbound.offer(frame)) {
+				Metrics.SLOW_CLIENT_DISCONNECTS.increment();
+				Server.SECURITY_LOGGER.warning("Disconnecting slow client: outbound queue full");
+				close();
+				return;
+			}
+			if (flushScheduled.compareAndSet(false, true)) {
+				loop.execute(this::flushFromTask);
+			}
+		}
+
+		@Override
+		public void close() {
+			loop.execute(this::closeNow);
+		}
+
+		@Override
+		public OutboundQueue outbound() {
+			return outbound;
+		}
+
+		// Loop thread only
+		void onReadable() throws IOException {
+			ByteBuffer buffer = loop.readBuffer;
+			buffer.clear();
+			int read = channel.read(buffer);
+			if (read < 0) {
+				closeNow();
+				return;
+			}
+
+			if (!decoder.feed(buffer.array(), 0, buffer.position())) {
+				LOGGER.warning("Closing connection that sent an oversized or malformed command");
+				closeNow();
+			}
+		}
+
+		@Override
+		public void onLine(String line) {
+			dispatch(() -> handler.onLine(line));
+		}
+
+		@Override
+		public void onBinaryHello() {
+			dispatch(handler::onBinaryHello);
+		}
+
+		@Override
+		public void onFrame(byte[] frame) {
+			dispatch(() -> handler.onFrame(frame));
+		}
+
+		private void dispatch(Runnable command) {
+			if (pendingLines.incrementAndGet() == MAX_PENDING_LINES) {
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			}
+			inbox.execute(() -> {
+				try {
+					if (!closed.get()) {
+						command.run();
+					}
+				} finally {
+					if (pendingLines.getAndDecrement() == MAX_PENDING_LINES) {
+						loop.execute(this::resumeReading);
+					}
+				}
+			});
+		}
+
+		// The handler ignores the continuation if the connection closed meanwhile
+		@Override
+		public void whenDone(CompletableFuture<?> step, Runnable then) {
+			step.whenComplete((result, failure) -> inbox.execute(then));
+		}
+
+		private void resumeReading() {
+			if (key.isValid()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			}
+		}
+
+		private void flushFromTask() {
+			try {
+				flush();
+			} catch (IOException | CancelledKeyException e) {
+				closeNow();
+			}
+		}
+
+		// Loop thread only. Writes as much as the socket takes and waits for
+		// OP_WRITE if the peer's window is full.
+		void flush() throws IOException {
+			if (closed.get()) return;
+			do {
+				while (writeNext()) {
+					if (writing.hasRemaining()) {
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+						return;
+					}
+					writing = null;
+				}
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+				flushScheduled.set(false);
+				// A sender may have enqueued after the last poll but seen the flag still set
+			} while (outbound.depth() > 0 && flushScheduled.compareAndSet(false, true));
+		}
+
+		// Writes the pending frame, or the next queued one; false when nothing is left
+		private boolean writeNext() throws IOException {
+			if (writing == null) {
+				byte[] frame = outbound.poll();
+				if (frame == null) return false;
+				writing = ByteBuffer.wrap(frame);
+				Metrics.FRAMES_OUT.increment();
+				Metrics.BYTES_OUT.add(frame.length);
+			}
+			channel.write(writing);
+			return true;
+		}
+
+		// Loop thread only
+		void closeNow() {
+			if (!closed.compareAndSet(false, true)) return;
+			if (key != null) {
+				key.cancel();
+			}
+			closeQuietly(channel);
+			connectionSlots.release();
+			writing = null;
+			// Nothing is written once closed but senders keep queuing, so the queue
+			// holds exactly what the client never got; the handler may park it for a
+			// resume before it goes
+			inbox.execute(() -> {
+				handler.onDisconnect();
+				outbound.clear();
+			});
+		}
+	}
+
+	private static void closeQuietly(java.io.Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException ignored) {
+		}
+	}
+}
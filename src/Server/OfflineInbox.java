@@ -0,0 +1,507 @@
+package Server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Private messages for users who are not logged in, kept until they log in and
+// acknowledge them. Users are spread over a fixed set of shard files, each an
+// append-only log of STORED and ACKED records, with an in-memory index of where
+// each waiting message sits, so a login reads just its own records and an ack
+// writes a few bytes. Acked and expired records are dead weight until the shard
+// is compacted: rewritten with only the live records once they are outnumbered.
+// Startup replays each shard to rebuild the index.
+//
+// Callers only touch the index, under the shard's lock, and queue the record
+// for a single writer thread, as MessageHistory does, so a slow disk never holds
+// up a PM or a login. A message the writer has not got to yet is served from
+// memory. Reads of the shard file happen outside the lock too.
+//
+// Appends are not fsynced one by one, so a message survives a server crash but
+// may not survive losing the machine; the sweep and close() force the files.
+//
+// Shard layout: a RecordFile, like the account journal, with records
+//   STORED: long id, long timestamp, UTF to, UTF from, int byte count, message
+//   ACKED:  UTF to, long id (everything up to and including it)
+final class OfflineInbox implements Closeable {
+	private static final Logger LOGGER = Logger.getLogger(OfflineInbox.class.getName());
+
+	private static final int MAGIC = 0x59414942; // "YAIB"
+	private static final short VERSION = 1;
+	private static final int HEADER_BYTES = RecordFile.HEADER_BYTES;
+	private static final int SHARDS = 16;
+
+	private static final byte STORED = 1;
+	private static final byte ACKED = 2;
+
+	private static final long SWEEP_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+	private static final int QUEUE_CAPACITY = 64 * 1024;
+	private static final int MAX_BATCH = 1024;
+
+	static final class Message {
+		final long id;
+		final long timestamp;
+		final String from;
+		final String text;
+
+		Message(long id, long timestamp, String from, String text) {
+			this.id = id;
+			this.timestamp = timestamp;
+			this.from = from;
+			this.text = text;
+		}
+	}
+
+	// Where a waiting message's record is in its shard. Until the writer has
+	// appended it, position is -1 and the message is kept here instead. Guarded
+	// by the shard's lock; only the writer changes a position.
+	private static final class Location {
+		final long id;
+		final long timestamp;
+		long position;
+		final int length;
+		Message unwritten;
+
+		Location(long id, long timestamp, long position, int length) {
+			this.id = id;
+			this.timestamp = timestamp;
+			this.position = position;
+			this.length = length;
+		}
+	}
+
+	// A record for the writer to append; location is null for an ACKED record
+	private static final class Write {
+		final Shard shard;
+		final byte[] record;
+		final Location location;
+
+		Write(Shard shard, byte[] record, Location location) {
+			this.shard = shard;
+			this.record = record;
+			this.location = location;
+		}
+	}
+
+	private static final Write STOP = new Write(null, null, null);
+
+	enum Result { STORED, FULL, FAILED }
+
+	private final Shard[] shards = new Shard[SHARDS];
+	private final int maxPerUser;
+	private final long expiryMillis;
+	private final BlockingQueue<Write> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private final Thread writer;
+
+	OfflineInbox(Path dir, int maxPerUser, long expiryMillis) throws IOException {
+		Files.createDirectories(dir);
+		this.maxPerUser = maxPerUser;
+		this.expiryMillis = expiryMillis;
+		long cutoff = System.currentTimeMillis() - expiryMillis;
+		int waiting = 0;
+		for (int i = 0; i < SHARDS; i++) {
+			shards[i] = new Shard(dir.resolve(String.format("shard-%02d.log", i)), cutoff);
+			waiting += shards[i].messages;
+		}
+		writer = Thread.ofPlatform().name("inbox-writer").daemon().start(this::writeLoop);
+		LOGGER.info("Opened offline inbox with " + waiting + " waiting messages");
+	}
+
+	// Records are queued under the shard's lock, so each shard's records reach
+	// the file in id order and an ACKED record after what it acknowledges
+	Result store(String to, String from, String text) {
+		Shard shard = shard(to);
+		long timestamp = System.currentTimeMillis();
+		synchronized (shard) {
+			ArrayDeque<Location> waiting = shard.index.get(to);
+			if (waiting != null && waiting.size() >= maxPerUser) {
+				return Result.FULL;
+			}
+			long id = shard.nextId;
+			byte[] record;
+			try {
+				record = stored(id, timestamp, to, from, text);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not store offline message for " + to, e);
+				return Result.FAILED;
+			}
+			Location location = new Location(id, timestamp, -1, record.length);
+			if (!queue.offer(new Write(shard, record, location))) {
+				LOGGER.warning("Offline inbox writer is behind; refusing a message for " + to);
+				return Result.FAILED;
+			}
+			location.unwritten = new Message(id, timestamp, from, text);
+			shard.nextId = id + 1;
+			shard.add(to, location);
+			Metrics.INBOX_STORED.increment();
+			return Result.STORED;
+		}
+	}
+
+	// The oldest waiting messages, at most limit of them, still waiting until acked.
+	// Positions are taken under the lock and read after it; a compaction in
+	// between closes the file they refer to, and they are simply taken again.
+	List<Message> peek(String user, int limit) {
+		Shard shard = shard(user);
+		while (true) {
+			Message[] messages;
+			long[] positions;
+			int[] lengths;
+			FileChannel file;
+			synchronized (shard) {
+				ArrayDeque<Location> waiting = shard.index.get(user);
+				if (waiting == null) return Collections.emptyList();
+				int count = Math.min(limit, waiting.size());
+				messages = new Message[count];
+				positions = new long[count];
+				lengths = new int[count];
+				int i = 0;
+				for (Location location : waiting) {
+					if (i == count) break;
+					messages[i] = location.unwritten;
+					positions[i] = location.position;
+					lengths[i] = location.length;
+					i++;
+				}
+				file = shard.file;
+			}
+			List<Message> read = new ArrayList<>(messages.length);
+			try {
+				for (int i = 0; i < messages.length; i++) {
+					read.add(messages[i] != null ? messages[i] : shard.read(file, positions[i], lengths[i]));
+				}
+			} catch (ClosedChannelException e) {
+				continue;
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not read offline messages for " + user, e);
+			}
+			return read;
+		}
+	}
+
+	int waiting(String user) {
+		Shard shard = shard(user);
+		synchronized (shard) {
+			ArrayDeque<Location> waiting = shard.index.get(user);
+			return waiting == null ? 0 : waiting.size();
+		}
+	}
+
+	// Drops every waiting message up to and including id. If the record can't be
+	// queued they are still dropped here, and sent again after a restart.
+	void ack(String user, long id) {
+		Shard shard = shard(user);
+		synchronized (shard) {
+			ArrayDeque<Location> waiting = shard.index.get(user);
+			if (waiting == null || waiting.peekFirst().id > id) return;
+			try {
+				byte[] record = acked(user, id);
+				if (queue.offer(new Write(shard, record, null))) {
+					shard.deadBytes += record.length;
+				} else {
+					LOGGER.warning("Offline inbox writer is behind; ack for " + user + " not recorded");
+				}
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not record offline message ack for " + user, e);
+			}
+			Metrics.INBOX_DELIVERED.add(shard.drop(user, id, Long.MIN_VALUE));
+		}
+	}
+
+	int size() {
+		int total = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				total += shard.messages;
+			}
+		}
+		return total;
+	}
+
+	// Writes out what is queued, then forces and closes the shards
+	@Override
+	public void close() {
+		try {
+			queue.put(STOP);
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Shard shard : shards) {
+			try {
+				shard.file.close();
+			} catch (IOException e) {
+				LOGGER.warning("Error closing offline inbox: " + e.getMessage());
+			}
+		}
+	}
+
+	private Shard shard(String user) {
+		return shards[(user.hashCode() & 0x7fffffff) % SHARDS];
+	}
+
+	private void writeLoop() {
+		List<Write> batch = new ArrayList<>(MAX_BATCH);
+		long lastSweep = System.currentTimeMillis();
+		boolean stopping = false;
+		while (!stopping) {
+			try {
+				Write first = queue.poll(SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch, MAX_BATCH - 1);
+				}
+				stopping = batch.remove(STOP);
+				for (Write write : batch) {
+					write(write);
+				}
+				long now = System.currentTimeMillis();
+				if (stopping || now - lastSweep >= SWEEP_INTERVAL_MILLIS) {
+					sweep(now);
+					lastSweep = now;
+				}
+			} catch (InterruptedException e) {
+				stopping = true;
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	// Writer thread only. A record that can't be written leaves its message in
+	// memory: still delivered, but lost if the server restarts first.
+	private void write(Write write) {
+		Shard shard = write.shard;
+		try {
+			long position = shard.append(write.record);
+			if (write.location != null) {
+				synchronized (shard) {
+					write.location.position = position;
+					write.location.unwritten = null;
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not write to " + shard.path.getFileName(), e);
+		}
+	}
+
+	// Writer thread only
+	private void sweep(long now) {
+		long cutoff = now - expiryMillis;
+		for (Shard shard : shards) {
+			boolean compact;
+			synchronized (shard) {
+				shard.expire(cutoff);
+				compact = shard.deadBytes >= MIN_COMPACT_BYTES && shard.deadBytes > shard.liveBytes;
+			}
+			try {
+				if (compact) {
+					shard.compact();
+				}
+				shard.file.force(false);
+			} catch (IOException | RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Offline inbox sweep failed for " + shard.path.getFileName(), e);
+			}
+		}
+	}
+
+	// Guarded by its own monitor, except end, which only the writer uses. The
+	// writer also swaps file, under the monitor, when it compacts.
+	private static final class Shard {
+		final Path path;
+		FileChannel file;
+		// Oldest first
+		final Map<String, ArrayDeque<Location>> index = new HashMap<>();
+		long nextId = 1;
+		long end;
+		long liveBytes;
+		long deadBytes;
+		int messages;
+
+		Shard(Path path, long cutoff) throws IOException {
+			this.path = path;
+			this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if (file.size() == 0) {
+				file.write(RecordFile.header(MAGIC, VERSION), 0);
+				end = HEADER_BYTES;
+			} else {
+				end = RecordFile.replay(file, MAGIC, VERSION, path, "an offline inbox shard", true, this::apply);
+				deadBytes = end - HEADER_BYTES - liveBytes;
+				expire(cutoff);
+			}
+		}
+
+		void add(String to, Location location) {
+			index.computeIfAbsent(to, key -> new ArrayDeque<>()).add(location);
+			liveBytes += location.length;
+			messages++;
+		}
+
+		// Index only: at replay, expired records are skipped by their timestamp
+		void expire(long cutoff) {
+			for (String user : new ArrayList<>(index.keySet())) {
+				Metrics.INBOX_EXPIRED.add(drop(user, Long.MIN_VALUE, cutoff));
+			}
+		}
+
+		// Drops the user's leading messages with id <= upToId or timestamp < cutoff
+		private int drop(String user, long upToId, long cutoff) {
+			ArrayDeque<Location> waiting = index.get(user);
+			int dropped = 0;
+			Location first;
+			while ((first = waiting.peekFirst()) != null && (first.id <= upToId || first.timestamp < cutoff)) {
+				waiting.pollFirst();
+				liveBytes -= first.length;
+				deadBytes += first.length;
+				messages--;
+				dropped++;
+			}
+			if (waiting.isEmpty()) {
+				index.remove(user);
+			}
+			return dropped;
+		}
+
+		Message read(FileChannel file, long position, int length) throws IOException {
+			ByteBuffer record = ByteBuffer.allocate(length);
+			while (record.hasRemaining()) {
+				if (file.read(record, position + record.position()) < 0) {
+					throw new EOFException("Offline message record past end of " + path);
+				}
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.array(), 5, length - 9));
+			long id = in.readLong();
+			long timestamp = in.readLong();
+			in.readUTF();
+			String from = in.readUTF();
+			byte[] text = new byte[in.readInt()];
+			in.readFully(text);
+			return new Message(id, timestamp, from, new String(text, StandardCharsets.UTF_8));
+		}
+
+		// Writer thread only
+		long append(byte[] record) throws IOException {
+			long position = end;
+			ByteBuffer buffer = ByteBuffer.wrap(record);
+			while (buffer.hasRemaining()) {
+				file.write(buffer, position + buffer.position());
+			}
+			end = position + record.length;
+			return position;
+		}
+
+		// Writer thread only. Rewrites the shard with the messages waiting when it
+		// starts, then swaps it in. Any acked meanwhile are copied anyway; their
+		// ACKED records are still queued and land in the new file.
+		void compact() throws IOException {
+			List<Location> live = new ArrayList<>();
+			synchronized (this) {
+				for (ArrayDeque<Location> waiting : index.values()) {
+					for (Location location : waiting) {
+						// Unwritten ones go to the new file when the writer gets to them
+						if (location.position >= 0) {
+							live.add(location);
+						}
+					}
+				}
+			}
+			Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+			long[] moved = new long[live.size()];
+			long position = HEADER_BYTES;
+			try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				out.write(RecordFile.header(MAGIC, VERSION), 0);
+				for (int i = 0; i < moved.length; i++) {
+					Location location = live.get(i);
+					ByteBuffer record = ByteBuffer.allocate(location.length);
+					while (record.hasRemaining()) {
+						if (file.read(record, location.position + record.position()) < 0) {
+							throw new EOFException("Offline message record past end of " + path);
+						}
+					}
+					record.flip();
+					while (record.hasRemaining()) {
+						out.write(record, position + record.position());
+					}
+					moved[i] = position;
+					position += location.length;
+				}
+				out.force(true);
+			}
+			// Readers that took positions in the old file find it closed and retry
+			Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			FileChannel replaced = file;
+			FileChannel reopened = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			int count;
+			synchronized (this) {
+				for (int i = 0; i < moved.length; i++) {
+					live.get(i).position = moved[i];
+				}
+				file = reopened;
+				deadBytes = 0;
+				count = messages;
+			}
+			end = position;
+			replaced.close();
+			LOGGER.fine("Compacted " + path.getFileName() + " to " + count + " messages");
+		}
+
+		private void apply(byte[] body, long position) throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+			byte type = in.readByte();
+			switch (type) {
+				case STORED: {
+					long id = in.readLong();
+					long timestamp = in.readLong();
+					String to = in.readUTF();
+					int length = RecordFile.FRAMING_BYTES + body.length;
+					index.computeIfAbsent(to, key -> new ArrayDeque<>()).add(new Location(id, timestamp, position, length));
+					liveBytes += length;
+					messages++;
+					nextId = Math.max(nextId, id + 1);
+					break;
+				}
+				case ACKED: {
+					String user = in.readUTF();
+					long id = in.readLong();
+					if (index.containsKey(user)) {
+						drop(user, id, Long.MIN_VALUE);
+					}
+					break;
+				}
+				default:
+					// Written by a newer server; skip what this one doesn't understand
+					LOGGER.fine("Skipping unknown offline inbox record type " + type);
+			}
+		}
+	}
+
+	private static byte[] stored(long id, long timestamp, String to, String from, String text) throws IOException {
+		return RecordFile.record(STORED, out -> {
+			out.writeLong(id);
+			out.writeLong(timestamp);
+			out.writeUTF(to);
+			out.writeUTF(from);
+			byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		});
+	}
+
+	private static byte[] acked(String user, long id) throws IOException {
+		return RecordFile.record(ACKED, out -> {
+			out.writeUTF(user);
+			out.writeLong(id);
+		});
+	}
+}
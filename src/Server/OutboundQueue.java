@@ -0,0 +1,73 @@
+package Server;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Encoded frames waiting to be written to one client. Senders never block on it:
+// when a slow reader lets it fill up, the overflow policy decides what gives.
+final class OutboundQueue {
+	enum OverflowPolicy { DROP_OLDEST, DROP_NEWEST, DISCONNECT }
+
+	private final BlockingQueue<byte[]> frames;
+	private final OverflowPolicy policy;
+	private final AtomicLong dropped = new AtomicLong();
+
+	OutboundQueue(int capacity, OverflowPolicy policy) {
+		this.frames = new LinkedBlockingQueue<>(capacity);
+		this.policy = policy;
+	}
+
+	// Returns false when the client should be disconnected instead
+	boolean offer(byte[] frame) {
+		while (!frames.offer(frame)) {
+			switch (policy) {
+				case DROP_NEWEST:
+					dropped.incrementAndGet();
+					Metrics.FRAMES_DROPPED.increment();
+					return true;
+				case DROP_OLDEST:
+					if (frames.poll() != null) {
+						dropped.incrementAndGet();
+						Metrics.FRAMES_DROPPED.increment();
+					}
+					break;
+				case DISCONNECT:
+					dropped.incrementAndGet();
+					Metrics.FRAMES_DROPPED.increment();
+					return false;
+			}
+		}
+		return true;
+	}
+
+	// For a connection that has closed: nothing is written any more, so nothing
+	// already queued is given up to make room. What does not fit is counted as
+	// dropped, which tells a parked session its replay has a gap.
+	void hold(byte[] frame) {
+		if (!frames.offer(frame)) {
+			dropped.incrementAndGet();
+			Metrics.FRAMES_DROPPED.increment();
+		}
+	}
+
+	byte[] poll() {
+		return frames.poll();
+	}
+
+	byte[] take() throws InterruptedException {
+		return frames.take();
+	}
+
+	void clear() {
+		frames.clear();
+	}
+
+	int depth() {
+		return frames.size();
+	}
+
+	long dropped() {
+		return dropped.get();
+	}
+}
@@ -0,0 +1,53 @@
+package Server;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs PBKDF2 on a fixed pool sized to the CPU instead of on connection threads.
+// The queue in front of it is bounded: when a reconnect storm fills it, callers
+// get a RejectedExecutionException straight away and tell the client to retry,
+// rather than everyone waiting behind seconds of hashing.
+final class PasswordHasher {
+	private final ThreadPoolExecutor pool;
+
+	PasswordHasher(int threads, int queueSize) {
+		AtomicInteger threadId = new AtomicInteger();
+		this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueSize),
+				task -> {
+					Thread thread = new Thread(task, "auth-" + threadId.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				},
+				new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	// Completes with the hash, or with null if hashing failed, on an auth thread;
+	// the caller never waits for it. Throws RejectedExecutionException if the pool
+	// is saturated.
+	CompletableFuture<String> hash(String password, byte[] salt) {
+		long enqueued = System.nanoTime();
+		try {
+			return CompletableFuture.supplyAsync(() -> {
+				long started = System.nanoTime();
+				try {
+					return Server.hashPassword(password, salt);
+				} finally {
+					Metrics.AUTH_QUEUE_WAIT_NANOS.record(started - enqueued);
+					Metrics.AUTH_HASH_NANOS.record(System.nanoTime() - started);
+				}
+			}, pool);
+		} catch (RejectedExecutionException e) {
+			Metrics.AUTH_REJECTED.increment();
+			throw e;
+		}
+	}
+
+	void registerMetrics() {
+		Metrics.pool("auth", pool);
+	}
+
+	void shutdown() {
+		pool.shutdownNow();
+	}
+}
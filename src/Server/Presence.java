@@ -0,0 +1,154 @@
+package Server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Online/offline notifications for clients that ask. A client subscribes to
+// usernames, or to EVERYONE; it gets the current state at once, and after that
+// changes are not pushed one by one but collected in its Outbox and flushed
+// once per window, the latest state per user winning. A burst of N logins
+// watched by M clients then costs M lines per window instead of N*M.
+//
+// Wire format, on either protocol as a text line:
+//   PRESENCE +alice -bob ...      ('+' online, '-' offline)
+// Only users on this server are seen; in a cluster, presence is per node.
+final class Presence {
+	static final String EVERYONE = "*";
+	// Keeps a line well under the binary protocol's frame limit
+	private static final int MAX_ENTRIES_PER_LINE = 200;
+
+	// Per-subscriber state. The subscription sets are only touched from the
+	// subscriber's own command thread; pending is shared with the notifiers.
+	static final class Outbox implements Runnable {
+		private final Server.ClientHandler subscriber;
+		private final Set<String> watching = new HashSet<>();
+		private volatile boolean everyone;
+		private Map<String, Boolean> pending = new LinkedHashMap<>();
+		private boolean scheduled;
+
+		Outbox(Server.ClientHandler subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		private void add(Presence presence, String user, boolean online) {
+			boolean schedule;
+			synchronized (this) {
+				pending.put(user, online);
+				schedule = !scheduled;
+				scheduled = true;
+			}
+			if (schedule) {
+				presence.flusher.schedule(this, presence.windowMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		@Override
+		public void run() {
+			Map<String, Boolean> changes;
+			synchronized (this) {
+				changes = pending;
+				pending = new LinkedHashMap<>();
+				scheduled = false;
+			}
+			Metrics.PRESENCE_BATCHES.increment();
+			send(subscriber, changes);
+		}
+	}
+
+	private final Map<String, ?> online;
+	private final long windowMillis;
+	private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(
+			Thread.ofPlatform().name("presence-flusher").daemon().factory());
+	private final Map<String, Set<Outbox>> watchers = new ConcurrentHashMap<>();
+	private final Set<Outbox> watchingEveryone = ConcurrentHashMap.newKeySet();
+
+	// online: who is logged in, by username
+	Presence(Map<String, ?> online, long windowMillis) {
+		this.online = online;
+		this.windowMillis = windowMillis;
+	}
+
+	void subscribe(Outbox outbox, List<String> users) {
+		Map<String, Boolean> snapshot = new LinkedHashMap<>();
+		for (String user : users) {
+			if (user.equals(EVERYONE)) {
+				outbox.everyone = true;
+				watchingEveryone.add(outbox);
+				// Registered first, so a change racing the snapshot shows up in a batch
+				for (String name : online.keySet()) {
+					snapshot.put(name, true);
+				}
+			} else if (outbox.watching.add(user)) {
+				watchers.compute(user, (key, set) -> {
+					if (set == null) {
+						set = ConcurrentHashMap.newKeySet();
+					}
+					set.add(outbox);
+					return set;
+				});
+				snapshot.put(user, online.containsKey(user));
+			}
+		}
+		send(outbox.subscriber, snapshot);
+	}
+
+	void unsubscribe(Outbox outbox, List<String> users) {
+		for (String user : users) {
+			if (user.equals(EVERYONE)) {
+				outbox.everyone = false;
+				watchingEveryone.remove(outbox);
+			} else if (outbox.watching.remove(user)) {
+				watchers.computeIfPresent(user, (key, set) -> {
+					set.remove(outbox);
+					return set.isEmpty() ? null : set;
+				});
+			}
+		}
+	}
+
+	// On logout or disconnect; touches only this subscriber's own entries
+	void unsubscribeAll(Outbox outbox) {
+		List<String> users = new ArrayList<>(outbox.watching);
+		users.add(EVERYONE);
+		unsubscribe(outbox, users);
+	}
+
+	void changed(String user, boolean isOnline) {
+		Metrics.PRESENCE_CHANGES.increment();
+		for (Outbox outbox : watchingEveryone) {
+			outbox.add(this, user, isOnline);
+		}
+		Set<Outbox> direct = watchers.get(user);
+		if (direct != null) {
+			for (Outbox outbox : direct) {
+				if (!outbox.everyone) {
+					outbox.add(this, user, isOnline);
+				}
+			}
+		}
+	}
+
+	private static void send(Server.ClientHandler subscriber, Map<String, Boolean> changes) {
+		StringBuilder line = new StringBuilder("PRESENCE");
+		int entries = 0;
+		for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+			line.append(' ').append(change.getValue() ? '+' : '-').append(change.getKey());
+			if (++entries == MAX_ENTRIES_PER_LINE) {
+				subscriber.sendLine(line.toString());
+				line.setLength("PRESENCE".length());
+				entries = 0;
+			}
+		}
+		if (entries > 0 || changes.isEmpty()) {
+			subscriber.sendLine(line.toString());
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package Server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+// The file format shared by the account journal and the offline inbox shards:
+// int magic, short version, then records of
+//   int length, byte type, payload (DataOutput encoding), int CRC32 of type+payload
+// where length covers type and payload. Each file has its own magic and record
+// types; this only frames, checks and finds the end of the records.
+final class RecordFile {
+	private static final Logger LOGGER = Logger.getLogger(RecordFile.class.getName());
+
+	static final int HEADER_BYTES = 6;
+	// Length and CRC around a record's body
+	static final int FRAMING_BYTES = 8;
+
+	interface Payload {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	interface Reader {
+		// body is the type byte and payload; position is where the record starts
+		void apply(byte[] body, long position) throws IOException;
+	}
+
+	private RecordFile() {
+	}
+
+	static ByteBuffer header(int magic, short version) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(magic).putShort(version);
+		header.flip();
+		return header;
+	}
+
+	// A whole framed record. Fails only if the payload can't be encoded, such as
+	// a string too long for writeUTF.
+	static byte[] record(byte type, Payload payload) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0); // length, patched below
+		out.writeByte(type);
+		payload.write(out);
+		byte[] record = bytes.toByteArray();
+		int length = record.length - 4;
+
+		CRC32 crc = new CRC32();
+		crc.update(record, 4, length);
+		ByteBuffer framed = ByteBuffer.allocate(record.length + 4);
+		framed.put(record).putInt((int) crc.getValue());
+		framed.putInt(0, length);
+		return framed.array();
+	}
+
+	// Hands each intact record to reader, in order, and returns where they end.
+	// Stops at the first record that is short or fails its CRC: a torn tail from
+	// a crash mid-append, with everything before it intact. The tail is cut off
+	// if truncate is set, and left alone otherwise (for a file only read once).
+	static long replay(FileChannel channel, int magic, short version, Path path, String kind,
+			boolean truncate, Reader reader) throws IOException {
+		long size = channel.size();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0)), 64 * 1024));
+		if (size < HEADER_BYTES || in.readInt() != magic) {
+			throw new IOException(path + " is not " + kind);
+		}
+		short found = in.readShort();
+		if (found > version) {
+			throw new IOException(path + " has unsupported version " + found);
+		}
+
+		CRC32 crc = new CRC32();
+		long position = HEADER_BYTES;
+		while (true) {
+			byte[] body;
+			try {
+				int length = in.readInt();
+				if (length <= 0 || length > size - position) break;
+				body = new byte[length];
+				in.readFully(body);
+				crc.reset();
+				crc.update(body);
+				if (in.readInt() != (int) crc.getValue()) break;
+			} catch (EOFException e) {
+				break;
+			}
+			reader.apply(body, position);
+			position += FRAMING_BYTES + body.length;
+		}
+
+		if (position < size) {
+			LOGGER.warning("Discarding " + (size - position) + " trailing bytes of " + path);
+			if (truncate) {
+				channel.truncate(position);
+			}
+		}
+		return position;
+	}
+}
@@ -0,0 +1,54 @@
+package Server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Runs tasks one at a time and in submission order on a shared pool, so a single
+// connection's lines are never processed concurrently without owning a thread.
+final class SerialExecutor implements Executor {
+	private static final Logger LOGGER = Logger.getLogger(SerialExecutor.class.getName());
+	private static final int BATCH = 64;
+
+	private final Executor delegate;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	SerialExecutor(Executor delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		schedule();
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			delegate.execute(this::drain);
+		}
+	}
+
+	private void drain() {
+		try {
+			// Yield the pool thread after a batch so one busy client can't starve the rest
+			Runnable task;
+			for (int i = 0; i < BATCH && (task = tasks.poll()) != null; i++) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.WARNING, "Client task failed", e);
+				}
+			}
+		} finally {
+			scheduled.set(false);
+			if (!tasks.isEmpty()) {
+				schedule();
+			}
+		}
+	}
+}
@@ -2,7 +2,10 @@ package Server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.security.*;
 import java.security.spec.*;
 import java.time.Instant;
@@ -14,69 +17,251 @@ import javax.crypto.*;
 import javax.crypto.spec.*;
 
 public class Server {
-	private static final int PORT = 5000;
-	private static final int MAX_CLIENTS = 100;
-	private static final int CONNECTION_TIMEOUT = 60000;
+	static final int PORT = 5000;
+	static final int MAX_CLIENTS = 100;
+	static final int CONNECTION_TIMEOUT = 60000;
 	private static final int MAX_LOGIN_ATTEMPTS = 3;
 	private static final int LOGIN_BLOCK_DURATION = 15 * 60;
 
-	private static final Logger SECURITY_LOGGER = Logger.getLogger("SecurityLogger");
-	private static final ConcurrentMap<String, UserAccount> userAccounts = new ConcurrentHashMap<>();
-	private static final ConcurrentMap<String, ClientHandler> activeClients = new ConcurrentHashMap<>();
-	private static final ExecutorService clientExecutor = Executors.newFixedThreadPool(MAX_CLIENTS);
+	static final Logger SECURITY_LOGGER = Logger.getLogger("SecurityLogger");
+	private static SessionRegistry sessions = new SessionRegistry(ServerConfig.DEFAULT_SESSIONS_PER_USER);
 	private static final Map<String, ChatRoom> chatRooms = new ConcurrentHashMap<>();
+	private static final Map<Integer, ChatRoom> roomsById = new ConcurrentHashMap<>();
 	private static final String USER_DATA_FILE = "user_accounts.dat";
+	private static final Path ACCOUNT_INDEX_FILE = Paths.get("user_accounts.idx");
+	private static final Path ACCOUNT_ROOMS_FILE = Paths.get("user_accounts.rooms");
+	private static final Path ACCOUNT_JOURNAL_FILE = Paths.get("user_accounts.journal");
+	private static final Path ACCOUNT_SNAPSHOT_FILE = Paths.get("user_accounts.snapshot");
+	private static final AccountStore accountStore;
+	private static final AccountJournal accountJournal;
+	private static final int MAX_HISTORY_PAGE = 200;
+	// Room names travel as short-prefixed strings in binary frames and the
+	// account journal, and name a directory in the message history
+	static final int MAX_ROOM_NAME_BYTES = 64;
+	// Chat and private messages go back out wrapped in CHAT, HISTORY, INBOX and
+	// [PM] lines, with a room, ids, a timestamp and a sender in front; the slack
+	// keeps the largest of those inside the frame size clients accept
+	static final int MAX_MESSAGE_BYTES = BinaryProtocol.MAX_FRAME_BYTES - 1024;
+	// Set in main; null (no history kept) when the chat classes are driven without a server
+	private static MessageHistory messageHistory;
+	private static OfflineInbox inbox;
+	private static int inboxBatch;
+	private static int joinBackfill;
+	private static int rejoinBackfill;
+	// Set in main when running as one node of several; null for a single server
+	private static Cluster cluster;
+	// Replaced in main with one using the configured window
+	private static Presence presence = new Presence(sessions.users(), ServerConfig.DEFAULT_PRESENCE_WINDOW_MILLIS);
+	// Idle reaping and session parking; null (and both off) unless main() set them
+	// up, so benchmark handlers run without
+	private static TimingWheel timers;
+	private static long idleTimeoutTicks;
+	private static long legacyIdleTimeoutTicks;
+	private static long resumeWindowTicks;
+	private static int replayLimit;
+	// Rejoin output is coalesced into frames of about this size
+	private static final int REJOIN_BATCH_BYTES = 64 * 1024;
+	// Commands a client may send while its password is being checked
+	private static final int MAX_HELD_BACK = 32;
+	// Heartbeat for text clients; binary ones use BinaryProtocol.PING and PONG.
+	// Text clients only get PINGs after sending HEARTBEAT before logging in, since
+	// older ones would show them as chat; binary ones always skip opcodes they
+	// don't know.
+	private static final byte[] PING_LINE = Connection.encodeLine("PING");
+	private static final String PONG = "PONG";
+	private static final String HEARTBEAT = "HEARTBEAT";
+	// Sent before logging in, or BinaryProtocol.SESSIONS: the client is given a
+	// "SESSION <token>" line at login and may RESUME with it. Older clients would
+	// show the line as chat, so they get none and their sessions end with the
+	// connection.
+	private static final String SESSIONS = "SESSIONS";
+	private static final String RESUME = "RESUME ";
+	// Sent before logging in, or BinaryProtocol.CHAT_IDS: chat messages kept in
+	// history then come as "CHAT <room> <id> <sender>: <message>", so a client
+	// can tell what it has already seen
+	private static final String CHAT_IDS = "CHAT_IDS";
 
 	static {
-		loadUserAccounts();
+		boolean migrate = !Files.exists(ACCOUNT_INDEX_FILE) && !Files.exists(ACCOUNT_SNAPSHOT_FILE);
+		try {
+			accountStore = AccountStore.open(ACCOUNT_INDEX_FILE, ACCOUNT_ROOMS_FILE);
+			accountJournal = AccountJournal.open(ACCOUNT_JOURNAL_FILE, ACCOUNT_SNAPSHOT_FILE, accountStore);
+		} catch (IOException e) {
+			throw new ExceptionInInitializerError("Cannot open account store: " + e.getMessage());
+		}
+		if (migrate) {
+			migrateLegacyUserAccounts();
+		}
 	}
 
-	private static void loadUserAccounts() {
+	// One-time import of the old serialized map; the store is the source of truth afterwards
+	private static void migrateLegacyUserAccounts() {
 		try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(USER_DATA_FILE))) {
 			@SuppressWarnings("unchecked")
 			Map<String, UserAccount> loadedAccounts = (Map<String, UserAccount>) ois.readObject();
-			userAccounts.putAll(loadedAccounts);
-			SECURITY_LOGGER.info("Loaded " + loadedAccounts.size() + " user accounts");
-		} catch (IOException | ClassNotFoundException e) {
-			SECURITY_LOGGER.info("No existing user accounts found or error loading accounts");
-		}
-	}
-
-	private static void saveUserAccounts() {
-		try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(USER_DATA_FILE))) {
-			oos.writeObject(new HashMap<>(userAccounts));
-			SECURITY_LOGGER.info("Saved " + userAccounts.size() + " user accounts");
-		} catch (IOException e) {
-			SECURITY_LOGGER.severe("Error saving user accounts: " + e.getMessage());
+			int migrated = 0;
+			for (Map.Entry<String, UserAccount> entry : loadedAccounts.entrySet()) {
+				String username = entry.getKey();
+				UserAccount account = entry.getValue();
+				if (!AccountStore.isStorableUsername(username)) {
+					SECURITY_LOGGER.warning("Skipping legacy account with an over-long name: " + username);
+					continue;
+				}
+				accountStore.create(username, account.salt, Base64.getDecoder().decode(account.hashedPassword));
+				accountJournal.accountCreated(username, account.salt, account.hashedPassword);
+				for (String room : account.joinedRooms) {
+					if (!isValidRoomName(room)) {
+						SECURITY_LOGGER.warning("Skipping over-long saved room of " + username + ": " + room);
+						continue;
+					}
+					accountStore.addRoom(username, room);
+					accountJournal.roomJoined(username, room);
+				}
+				migrated++;
+			}
+			SECURITY_LOGGER.info("Migrated " + migrated + " user accounts from " + USER_DATA_FILE);
+		} catch (FileNotFoundException e) {
+			SECURITY_LOGGER.info("No existing user accounts found");
+		} catch (IOException | ClassNotFoundException | IllegalArgumentException e) {
+			SECURITY_LOGGER.warning("Error loading legacy user accounts: " + e.getMessage());
 		}
 	}
 
 	// Chat room management
-	private static class ChatRoom {
+	// Membership is indexed both ways: a room knows its members and each
+	// ClientHandler knows its rooms, so teardown only visits the user's own rooms.
+	// Members are only added and removed inside chatRooms.compute() for the room's
+	// name, which makes "last member left, drop the room" atomic with respect to
+	// a concurrent JOIN of the same name. A room that empties is gone, and a later
+	// JOIN creates a new one with a new id.
+	static class ChatRoom {
+		private static final AtomicInteger nextId = new AtomicInteger(1);
+
 		private final String name;
+		// Stands in for the name on the binary protocol
+		private final int id = nextId.getAndIncrement();
 		private final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
 
 		ChatRoom(String name) {
 			this.name = name;
+			roomsById.put(id, this);
 		}
 
-		void addMember(ClientHandler client) {
-			members.add(client);
+		// Adds client to the named room, creating it if needed
+		static ChatRoom join(String name, ClientHandler client) {
+			return chatRooms.compute(name, (key, room) -> {
+				if (room == null) {
+					room = new ChatRoom(key);
+					if (cluster != null) {
+						cluster.roomOpened(key);
+					}
+				}
+				room.members.add(client);
+				return room;
+			});
 		}
 
-		void removeMember(ClientHandler client) {
-			members.remove(client);
+		// Removes client and reclaims the room if nobody is left
+		static void leave(ChatRoom room, ClientHandler client) {
+			chatRooms.computeIfPresent(room.name, (key, current) -> {
+				if (current != room) return current;
+				room.members.remove(client);
+				if (!room.members.isEmpty()) return room;
+				roomsById.remove(room.id);
+				if (cluster != null) {
+					cluster.roomClosed(key);
+				}
+				return null;
+			});
 		}
 
+		// To members here and, in a cluster, on every other node
 		void broadcast(String sender, String message) {
+			deliver(sender, message);
+			if (cluster != null) {
+				cluster.publish(name, sender, message);
+			}
+		}
+
+		// Local members only. Encoded at most once per protocol; the same bytes are
+		// queued for every member. Queued for history first, so the live copy
+		// carries the message's id.
+		void deliver(String sender, String message) {
+			MessageHistory history = messageHistory;
+			long messageId = history != null ? history.append(name, sender, message) : 0;
+			ChatFrame frame = new ChatFrame(id, name, messageId, sender, message);
+			int recipients = 0;
 			for (ClientHandler member : members) {
-				member.sendMessage(name, sender, message);
+				member.sendChat(frame);
+				recipients++;
 			}
+			Metrics.BROADCAST_FANOUT.record(recipients);
 		}
 	}
 
-	// Make UserAccount serializable
-	private static class UserAccount implements Serializable {
+	static byte[] chatFrame(String sender, String message) {
+		return Connection.encodeLine(sender + ": " + message);
+	}
+
+	// One chat message on its way to many recipients, each wire encoding built on
+	// first use. Only the thread doing the fan-out touches it. A messageId of 0
+	// means it is not in history.
+	static final class ChatFrame {
+		private final int roomId;
+		private final String room;
+		private final long messageId;
+		private final String sender;
+		private final String message;
+		private byte[] text;
+		private byte[] binary;
+		private byte[] taggedText;
+		private byte[] taggedBinary;
+
+		ChatFrame(int roomId, String room, long messageId, String sender, String message) {
+			this.roomId = roomId;
+			this.room = room;
+			this.messageId = messageId;
+			this.sender = sender;
+			this.message = message;
+		}
+
+		byte[] text() {
+			if (text == null) {
+				text = chatFrame(sender, message);
+			}
+			return text;
+		}
+
+		byte[] binary() {
+			if (binary == null) {
+				binary = BinaryProtocol.chat(roomId, sender, message);
+			}
+			return binary;
+		}
+
+		// For clients that asked for CHAT_IDS; a TEXT frame on the binary protocol,
+		// like the HISTORY lines
+		byte[] tagged(boolean binaryProtocol) {
+			if (binaryProtocol) {
+				if (taggedBinary == null) {
+					taggedBinary = BinaryProtocol.text(taggedLine());
+				}
+				return taggedBinary;
+			}
+			if (taggedText == null) {
+				taggedText = Connection.encodeLine(taggedLine());
+			}
+			return taggedText;
+		}
+
+		private String taggedLine() {
+			return "CHAT " + room + " " + messageId + " " + sender + ": " + message;
+		}
+	}
+
+	// The pre-journal on-disk format, kept only so migrateLegacyUserAccounts() can
+	// read user_accounts.dat. Live account state is in accountStore.
+	static class UserAccount implements Serializable {
 		private static final long serialVersionUID = 1L;
 		final String hashedPassword;
 		final byte[] salt;
@@ -88,27 +273,15 @@ public class Server {
 			this.hashedPassword = hashedPassword;
 			this.salt = salt;
 		}
-
-		boolean canAttemptLogin() {
-			return lockoutTime == null || Instant.now().isAfter(lockoutTime);
-		}
-
-		void lockAccount() {
-			if (loginAttempts.incrementAndGet() >= MAX_LOGIN_ATTEMPTS) {
-				lockoutTime = Instant.now().plusSeconds(LOGIN_BLOCK_DURATION);
-			}
-		}
-
-		void resetAttempts() {
-			loginAttempts.set(0);
-			lockoutTime = null;
-		}
 	}
 
 	// Sanitize input to prevent injection and trim whitespace
-	private static String sanitizeInput(String input) {
-		if (input == null) return null;
-		return input.replaceAll("[\\p{Cntrl}]", "").trim();
+	static String sanitizeInput(String input) {
+		return CommandLine.sanitize(input);
+	}
+
+	static boolean isValidRoomName(String room) {
+		return !room.isEmpty() && room.getBytes(StandardCharsets.UTF_8).length <= MAX_ROOM_NAME_BYTES;
 	}
 
 	// Password complexity validation
@@ -130,249 +303,1202 @@ public class Server {
 		return hasUppercase && hasLowercase && hasDigit && hasSpecialChar;
 	}
 
-	private static String hashPassword(String password, byte[] salt) {
+	// SecretKeyFactory lookups go through the provider registry, so each hashing thread keeps its own
+	private static final ThreadLocal<SecretKeyFactory> KEY_FACTORY = ThreadLocal.withInitial(() -> {
+		try {
+			return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	// Replaced in main() once the startup options are known
+	private static PasswordHasher passwordHasher = new PasswordHasher(
+			Runtime.getRuntime().availableProcessors(), ServerConfig.DEFAULT_AUTH_QUEUE);
+
+	static String hashPassword(String password, byte[] salt) {
 		try {
 			KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 65536, 256);
-			SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-			byte[] hash = factory.generateSecret(spec).getEncoded();
+			byte[] hash = KEY_FACTORY.get().generateSecret(spec).getEncoded();
 			return Base64.getEncoder().encodeToString(hash);
-		} catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+		} catch (InvalidKeySpecException | IllegalStateException e) {
 			SECURITY_LOGGER.severe("Password hashing failed: " + e.getMessage());
 			return null;
 		}
 	}
 
-	private static boolean authenticateUser(String username, String password) {
-		UserAccount account = userAccounts.get(username);
+	// Completes with whether the password matched. Throws RejectedExecutionException
+	// when the auth pool is saturated.
+	private static CompletableFuture<Boolean> authenticateUser(String username, String password) {
+		AccountStore.Account account = username == null ? null : accountStore.get(username);
 
-		if (account == null || !account.canAttemptLogin()) {
-			return false;
+		if (account == null || !account.canAttemptLogin(Instant.now().getEpochSecond())) {
+			return CompletableFuture.completedFuture(false);
 		}
 
-		String hashedInputPassword = hashPassword(password, account.salt);
+		return passwordHasher.hash(password, account.salt)
+				.thenApply(hashedInputPassword -> checkPassword(username, account, hashedInputPassword));
+	}
+
+	private static boolean checkPassword(String username, AccountStore.Account account, String hashedInputPassword) {
+		if (hashedInputPassword == null) {
+			return false;
+		}
 		boolean passwordMatch = MessageDigest.isEqual(
-				hashedInputPassword.getBytes(StandardCharsets.UTF_8),
-				account.hashedPassword.getBytes(StandardCharsets.UTF_8)
+				Base64.getDecoder().decode(hashedInputPassword),
+				account.hash
 		);
 
 		if (passwordMatch) {
-			account.resetAttempts();
+			if (accountStore.loginSucceeded(username)) {
+				accountJournal.unlocked(username);
+			}
 			return true;
 		} else {
-			account.lockAccount();
+			long lockedUntil = accountStore.loginFailed(username, MAX_LOGIN_ATTEMPTS,
+					Instant.now().getEpochSecond(), LOGIN_BLOCK_DURATION);
+			if (lockedUntil != 0) {
+				Metrics.LOCKOUTS.increment();
+				accountJournal.locked(username, Instant.ofEpochSecond(lockedUntil));
+			}
 			return false;
 		}
 	}
 
-	private static String registerNewUser(BufferedReader input, PrintWriter output) throws IOException {
-		String username = sanitizeInput(input.readLine());
-		String password = sanitizeInput(input.readLine());
-
-		if (username == null || !username.matches("^[a-zA-Z0-9._-]{3,}$")) {
-			output.println("Registration failed: Invalid username");
+	// The value a finished step completed with, or null if it failed
+	private static <T> T outcome(CompletableFuture<T> step) {
+		try {
+			return step.join();
+		} catch (CompletionException | CancellationException e) {
+			SECURITY_LOGGER.severe("Authentication step failed: " + e.getCause());
 			return null;
 		}
+	}
 
-		if (userAccounts.containsKey(username)) {
-			output.println("Registration failed: Username already exists");
-			return null;
+	// Session state for one client. Commands arrive through onLine() or, once the
+	// client has switched to BinaryProtocol, onFrame(), from whichever transport
+	// owns the socket (a blocking SocketConnection or an NIO event loop), always
+	// one at a time, so the fields below need no locking.
+	static class ClientHandler {
+		private enum State { CHOOSING, LOGIN_USERNAME, LOGIN_PASSWORD, REGISTER_USERNAME, REGISTER_PASSWORD, WAITING, CHATTING }
+
+		// Replaced when a reconnect resumes this session
+		private volatile Connection connection;
+		// Also read by the idle timer
+		private volatile State state = State.CHOOSING;
+		private String pendingUsername;
+		private String username;
+		private String currentRoom = "GENERAL";
+		// Read by other clients' threads when they deliver to this one
+		private volatile boolean binary;
+		private volatile boolean chatIds;
+		// Said it answers PING; read by the idle timer
+		private volatile boolean heartbeat;
+		// A PING has gone out and no PONG has come back yet
+		private volatile boolean pingOutstanding;
+		private boolean sessionTokens;
+		private final CommandLine commandLine = new CommandLine();
+		// The rooms this client is a member of, by name
+		private final Map<String, ChatRoom> rooms = new HashMap<>();
+		private final Presence.Outbox presenceOutbox = new Presence.Outbox(this);
+		// Input that arrived while in WAITING
+		private final ArrayDeque<Runnable> heldBack = new ArrayDeque<>();
+		// Wheel tick of the last input. Input only stamps it; the idle timer reads
+		// it when it fires, so a busy connection never touches the wheel.
+		private volatile long lastInputTick;
+		private volatile TimingWheel.Timeout idleTimer;
+		private volatile boolean disconnected;
+		// Single-use; a reconnect presents it instead of the password
+		private volatile String resumeToken;
+		// Taken by every send, by park() and by takeOver(), so a frame either
+		// reaches the connection's queue before park() drains it or goes into the
+		// replay buffer after; none can fall in between
+		private final Object sendLock = new Object();
+		// Non-null while parked: what the session was sent meanwhile, for replay
+		private volatile ArrayDeque<byte[]> replay;
+		// Guarded by sendLock
+		private boolean replayOverflowed;
+		private volatile boolean evicted;
+		// The parked session this connection resumed; everything is passed on to it
+		private ClientHandler resumed;
+		// Id of the last offline message sent; the next batch waits for its ack
+		private long inboxSentUpTo;
+
+		ClientHandler(Connection connection) {
+			this.connection = connection;
 		}
 
-		if (!isValidPassword(password)) {
-			output.println("Registration failed: Password does not meet requirements");
-			return null;
+		// Called by the transport once the connection is set up
+		void startIdleTimer() {
+			if (timers == null) return;
+			long first = idleTimeoutTicks > 0 ? idleTimeoutTicks / 2 : legacyIdleTimeoutTicks;
+			if (first == 0) return;
+			lastInputTick = timers.now();
+			idleTimer = timers.schedule(this::checkIdle, first);
 		}
 
-		byte[] salt = new byte[16];
-		new SecureRandom().nextBytes(salt);
-		String hashedPassword = hashPassword(password, salt);
+		// On the wheel thread. For a client that answers PING, half the timeout
+		// without input earns one and the whole of it closes the connection, and
+		// onDisconnect() then cleans up exactly as for LOGOUT. Clients that never
+		// said so (HEARTBEAT or binary HELLO, both sent straight after connecting)
+		// only have the much longer legacy timeout, and TCP keepalive for peers
+		// that vanish.
+		private void checkIdle() {
+			if (disconnected) return;
+			long idle = timers.now() - lastInputTick;
+			if (!heartbeat) {
+				if (legacyIdleTimeoutTicks == 0) return;
+				if (idle >= legacyIdleTimeoutTicks) {
+					closeIdle(idle);
+				} else {
+					idleTimer = timers.schedule(this::checkIdle, legacyIdleTimeoutTicks - idle);
+				}
+				return;
+			}
+			if (idleTimeoutTicks == 0) return;
+			if (idle >= idleTimeoutTicks) {
+				closeIdle(idle);
+			} else if (idle >= idleTimeoutTicks / 2) {
+				// Not while logging in: a PONG crossing the credentials in flight
+				// would be taken for one of them
+				if (!atCredentialPrompt()) {
+					pingOutstanding = true;
+					Metrics.PINGS_SENT.increment();
+					connection.sendFrame(binary ? BinaryProtocol.PING_FRAME : PING_LINE);
+				}
+				idleTimer = timers.schedule(this::checkIdle, idleTimeoutTicks - idle);
+			} else {
+				idleTimer = timers.schedule(this::checkIdle, idleTimeoutTicks / 2 - idle);
+			}
+		}
 
-		if (hashedPassword == null) {
-			output.println("Registration failed: Internal error");
-			return null;
+		private void closeIdle(long idle) {
+			Metrics.IDLE_DISCONNECTS.increment();
+			SECURITY_LOGGER.info("Closing connection idle for " + idle + " ticks");
+			connection.close();
 		}
 
-		UserAccount newAccount = new UserAccount(hashedPassword, salt);
-		userAccounts.put(username, newAccount);
-		saveUserAccounts(); // Save after registration
-		output.println("Registration successful!");
-		return username;
-	}
+		private boolean atCredentialPrompt() {
+			State current = state;
+			return current == State.LOGIN_USERNAME || current == State.LOGIN_PASSWORD
+					|| current == State.REGISTER_USERNAME || current == State.REGISTER_PASSWORD;
+		}
 
-	private static class ClientHandler implements Runnable {
-		private final Socket clientSocket;
-		private BufferedReader input;
-		private PrintWriter output;
-		private String username;
-		private String currentRoom = "GENERAL";
+		private void touch() {
+			if (timers != null) {
+				lastInputTick = timers.now();
+			}
+		}
 
-		public ClientHandler(Socket socket) {
-			this.clientSocket = socket;
+		void onLine(String line) {
+			touch();
+			// A heartbeat reply has done its job by arriving. Only taken as one when
+			// it answers a PING and is not a username or password.
+			if (pingOutstanding && !atCredentialPrompt() && line.equals(PONG)) {
+				pingOutstanding = false;
+				return;
+			}
+			if (resumed != null) {
+				resumed.onLine(line);
+				return;
+			}
+			if (state == State.WAITING) {
+				holdBack(() -> onLine(line));
+				return;
+			}
+			switch (state) {
+				case CHOOSING:
+					//output.println("1. Login\n2. Register\n3. Exit");
+					String choice = sanitizeInput(line);
+					if (choice.startsWith(RESUME)) {
+						resume(choice.substring(RESUME.length()));
+						break;
+					}
+					if (choice.equals(CHAT_IDS)) {
+						chatIds = true;
+						break;
+					}
+					if (choice.equals(HEARTBEAT)) {
+						heartbeat = true;
+						break;
+					}
+					if (choice.equals(SESSIONS)) {
+						sessionTokens = true;
+						break;
+					}
+					switch (choice) {
+						case "1":
+							state = State.LOGIN_USERNAME;
+							break;
+						case "2":
+							state = State.REGISTER_USERNAME;
+							break;
+						case "3":
+							connection.close();
+							break;
+						default:
+							sendLine("Invalid choice.");
+					}
+					break;
+
+				case LOGIN_USERNAME:
+					pendingUsername = line;
+					state = State.LOGIN_PASSWORD;
+					break;
+
+				case LOGIN_PASSWORD:
+					loginUser(pendingUsername, line);
+					break;
+
+				case REGISTER_USERNAME:
+					pendingUsername = line;
+					state = State.REGISTER_PASSWORD;
+					break;
+
+				case REGISTER_PASSWORD:
+					registerNewUser(pendingUsername, line);
+					break;
+
+				case CHATTING:
+					processCommand(line);
+					break;
+			}
 		}
 
-		private String loginUser() throws IOException {
-			String username = sanitizeInput(input.readLine());
-			String password = sanitizeInput(input.readLine());
+		private void enterChatOrRetry(String authenticatedUser) {
+			pendingUsername = null;
+			if (authenticatedUser == null) {
+				state = State.CHOOSING;
+				return;
+			}
 
-			if (authenticateUser(username, password)) {
-				output.println("Login successful!");
-				return username;
+			username = authenticatedUser;
+			state = State.CHATTING;
+			if (sessions.add(username, this)) {
+				presence.changed(username, true);
+				if (cluster != null) {
+					cluster.userOnline(username);
+				}
 			}
-			output.println("Login failed.");
-			return null;
+			if (resumeWindowTicks > 0 && sessionTokens) {
+				resumeToken = SessionRegistry.newToken();
+				sendLine("SESSION " + resumeToken);
+			}
+
+			// Join the general chat room by default
+			ChatRoom generalRoom = enterRoom("GENERAL");
+			if (binary) {
+				send(BinaryProtocol.room(generalRoom.id, generalRoom.name));
+			}
+			rejoinRooms();
+			sendInboxBatch();
 		}
 
-		private void sendMessage(String sender, String message) {
-			output.println(String.format("%s: %s", sender, message));
+		// Offline PMs go out one batch per frame, and the next batch only once the
+		// client has acked this one, so a backlog of thousands is paced by the
+		// client rather than dumped on the outbound queue:
+		//   INBOX <id> <epochMillis> <sender>: <message>    (one per message)
+		//   INBOX_END <count> <waiting>                     (waiting includes these)
+		// answered with INBOX_ACK <id of the last one>. Anything not acked is sent
+		// again at the next login.
+		private void sendInboxBatch() {
+			if (inbox == null) return;
+			List<OfflineInbox.Message> messages = inbox.peek(username, inboxBatch);
+			if (messages.isEmpty()) return;
+			ByteArrayOutputStream batch = new ByteArrayOutputStream();
+			for (OfflineInbox.Message message : messages) {
+				batch.writeBytes(encodeLine("INBOX " + message.id + " " + message.timestamp + " "
+						+ message.from + ": " + message.text));
+			}
+			batch.writeBytes(encodeLine("INBOX_END " + messages.size() + " " + inbox.waiting(username)));
+			send(batch.toByteArray());
+			inboxSentUpTo = messages.get(messages.size() - 1).id;
+		}
+
+		private void inboxAck(long id) {
+			if (inbox == null) return;
+			inbox.ack(username, id);
+			if (id >= inboxSentUpTo) {
+				sendInboxBatch();
+			}
+		}
+
+		// Puts the client back in the rooms it had joined, with the same output a JOIN
+		// of each would produce, but in one pass: the saved list is read once, nothing
+		// is written back, the backfill is shorter, and everything goes out in a few
+		// large frames rather than one per line, so a reconnect storm neither costs a
+		// round trip per room nor floods the outbound queues.
+		private void rejoinRooms() {
+			Set<String> saved;
+			try {
+				saved = accountStore.rooms(username);
+			} catch (IOException e) {
+				SECURITY_LOGGER.warning("Could not read saved rooms for " + username + ": " + e.getMessage());
+				return;
+			}
+			ByteArrayOutputStream batch = new ByteArrayOutputStream();
+			int rejoined = 0;
+			for (String roomName : saved) {
+				// Saved before names were limited; it can't be put in a ROOM frame
+				if (rooms.containsKey(roomName) || !isValidRoomName(roomName)) continue;
+				ChatRoom room = enterRoom(roomName);
+				currentRoom = roomName;
+				rejoined++;
+				if (binary) {
+					batch.writeBytes(BinaryProtocol.room(room.id, roomName));
+				}
+				batch.writeBytes(encodeLine("SERVER: Joined room: " + roomName));
+				if (messageHistory != null && rejoinBackfill > 0) {
+					for (MessageHistory.Entry entry : messageHistory.before(roomName, 0, rejoinBackfill)) {
+						batch.writeBytes(encodeChat(new ChatFrame(room.id, roomName, entry.id, entry.sender, entry.message)));
+					}
+				}
+				if (batch.size() >= REJOIN_BATCH_BYTES) {
+					send(batch.toByteArray());
+					batch.reset();
+				}
+			}
+			if (batch.size() > 0) {
+				send(batch.toByteArray());
+			}
+			Metrics.ROOMS_REJOINED.record(rejoined);
 		}
 
-		private void sendMessage(String room, String sender, String message) {
-			output.println(String.format("%s: %s", sender, message));
+		private void loginUser(String rawUsername, String rawPassword) {
+			Metrics.commandIn(Metrics.Command.LOGIN);
+			String username = sanitizeInput(rawUsername);
+			String password = sanitizeInput(rawPassword);
+
+			CompletableFuture<Boolean> authenticated;
+			try {
+				authenticated = authenticateUser(username, password);
+			} catch (RejectedExecutionException e) {
+				sendLine("Login failed: Server busy, please retry");
+				enterChatOrRetry(null);
+				return;
+			}
+			await(authenticated, () -> {
+				if (Boolean.TRUE.equals(outcome(authenticated))) {
+					Metrics.LOGINS_SUCCEEDED.increment();
+					sendLine("Login successful!");
+					enterChatOrRetry(username);
+					return;
+				}
+				Metrics.LOGINS_FAILED.increment();
+				sendLine("Login failed.");
+				enterChatOrRetry(null);
+			});
 		}
 
-		private void processCommand(String command) {
-			String[] parts = command.split("\\s+", 3);
-			if (parts.length == 0) return;
+		private void registerNewUser(String rawUsername, String rawPassword) {
+			Metrics.commandIn(Metrics.Command.REGISTER);
+			String username = sanitizeInput(rawUsername);
+			String password = sanitizeInput(rawPassword);
 
-			String cmd = parts[0].toUpperCase();
+			// Upper bound is AccountStore.MAX_USERNAME_BYTES
+			if (username == null || !CommandLine.isValidUsername(username, 3, 48)) {
+				registrationFailed("Invalid username");
+				return;
+			}
+
+			if (accountStore.contains(username)) {
+				registrationFailed("Username already exists");
+				return;
+			}
+
+			if (!isValidPassword(password)) {
+				registrationFailed("Password does not meet requirements");
+				return;
+			}
+
+			byte[] salt = new byte[16];
+			new SecureRandom().nextBytes(salt);
+			CompletableFuture<String> hashed;
+			try {
+				hashed = passwordHasher.hash(password, salt);
+			} catch (RejectedExecutionException e) {
+				registrationFailed("Server busy, please retry");
+				return;
+			}
+			await(hashed, () -> saveAccount(username, salt, outcome(hashed)));
+		}
+
+		private void saveAccount(String username, byte[] salt, String hashedPassword) {
+			if (hashedPassword == null) {
+				registrationFailed("Internal error");
+				return;
+			}
+
+			CompletableFuture<Void> durable;
+			try {
+				if (!accountStore.create(username, salt, Base64.getDecoder().decode(hashedPassword))) {
+					registrationFailed("Username already exists");
+					return;
+				}
+				durable = accountJournal.accountCreated(username, salt, hashedPassword);
+			} catch (IOException e) {
+				SECURITY_LOGGER.severe("Error saving new account: " + e);
+				registrationFailed("Internal error");
+				return;
+			}
+			// Only confirm once the account is durable
+			await(durable, () -> {
+				try {
+					durable.join();
+				} catch (CompletionException e) {
+					SECURITY_LOGGER.severe("Error saving new account: " + e.getCause());
+					registrationFailed("Internal error");
+					return;
+				}
+				sendLine("Registration successful!");
+				enterChatOrRetry(username);
+			});
+		}
+
+		private void registrationFailed(String reason) {
+			sendLine("Registration failed: " + reason);
+			enterChatOrRetry(null);
+		}
+
+		// Parks the state machine while a step runs elsewhere (a password hash, a
+		// journal write) and carries on with then once it is done, back in order
+		// with this connection's commands; whatever the client sends meanwhile is
+		// held back and handled after it. Nothing waits if the client has gone.
+		private void await(CompletableFuture<?> step, Runnable then) {
+			state = State.WAITING;
+			connection.whenDone(step, () -> {
+				if (disconnected) return;
+				// then() moves on to CHATTING, or back to WAITING for the next step
+				state = State.CHOOSING;
+				then.run();
+				Runnable held;
+				while (state != State.WAITING && (held = heldBack.poll()) != null) {
+					held.run();
+				}
+			});
+		}
+
+		private void holdBack(Runnable command) {
+			if (heldBack.size() >= MAX_HELD_BACK) {
+				SECURITY_LOGGER.warning("Closing connection that kept sending while its login was checked");
+				connection.close();
+				return;
+			}
+			heldBack.add(command);
+		}
+
+		// The client sent BinaryProtocol.HELLO as its first line
+		void onBinaryHello() {
+			touch();
+			sendLine(BinaryProtocol.HELLO_OK);
+			binary = true;
+			heartbeat = true;
+		}
+
+		void onFrame(byte[] frame) {
+			ByteBuffer in = ByteBuffer.wrap(frame);
+			try {
+				byte opcode = in.get();
+				touch();
+				if (opcode == BinaryProtocol.PONG) {
+					pingOutstanding = false;
+					return;
+				}
+				if (resumed != null) {
+					resumed.onFrame(frame);
+					return;
+				}
+				if (state == State.WAITING) {
+					holdBack(() -> onFrame(frame));
+					return;
+				}
+				if (state == State.CHATTING) {
+					Metrics.commandIn(BinaryProtocol.command(opcode));
+				}
+				if (state != State.CHATTING) {
+					switch (opcode) {
+						case BinaryProtocol.LOGIN:
+							loginUser(BinaryProtocol.readString(in), BinaryProtocol.readString(in));
+							break;
+						case BinaryProtocol.REGISTER:
+							registerNewUser(BinaryProtocol.readString(in), BinaryProtocol.readString(in));
+							break;
+						case BinaryProtocol.RESUME:
+							resume(BinaryProtocol.readString(in));
+							break;
+						case BinaryProtocol.CHAT_IDS:
+							chatIds = true;
+							break;
+						case BinaryProtocol.SESSIONS:
+							sessionTokens = true;
+							break;
+						default:
+							sendLine("Invalid choice.");
+					}
+					return;
+				}
+
+				switch (opcode) {
+					case BinaryProtocol.MESSAGE: {
+						ChatRoom room = roomsById.get(in.getInt());
+						String message = BinaryProtocol.readRest(in);
+						if (room != null && withinMessageLimit(message)) {
+							room.broadcast(username, message);
+						}
+						break;
+					}
+					case BinaryProtocol.JOIN:
+						joinRoom(BinaryProtocol.readString(in));
+						break;
+					case BinaryProtocol.LEAVE: {
+						ChatRoom room = roomsById.get(in.getInt());
+						if (room != null) {
+							leaveRoom(room.name);
+						}
+						break;
+					}
+					case BinaryProtocol.PM:
+						privateMessage(BinaryProtocol.readString(in), BinaryProtocol.readRest(in));
+						break;
+					case BinaryProtocol.LOGOUT:
+						logout();
+						break;
+					case BinaryProtocol.HISTORY: {
+						ChatRoom room = roomsById.get(in.getInt());
+						long beforeId = in.getLong();
+						int limit = in.getInt();
+						if (room != null) {
+							sendHistory(room.name, beforeId, limit);
+						}
+						break;
+					}
+					case BinaryProtocol.SUBSCRIBE:
+						presence.subscribe(presenceOutbox, readUsernames(in));
+						break;
+					case BinaryProtocol.UNSUBSCRIBE:
+						presence.unsubscribe(presenceOutbox, readUsernames(in));
+						break;
+					case BinaryProtocol.INBOX_ACK:
+						inboxAck(in.getLong());
+						break;
+				}
+			} catch (BufferUnderflowException e) {
+				SECURITY_LOGGER.warning("Closing connection that sent a truncated frame");
+				connection.close();
+			}
+		}
+
+		// Everything for this client goes through here, so that a parked session
+		// keeps what it is sent
+		private void send(byte[] frame) {
+			synchronized (sendLock) {
+				ArrayDeque<byte[]> buffer = replay;
+				if (buffer == null) {
+					connection.sendFrame(frame);
+				} else if (buffer.size() < replayLimit) {
+					buffer.add(frame);
+				} else {
+					replayOverflowed = true;
+				}
+			}
+		}
+
+		void sendLine(String line) {
+			send(encodeLine(line));
+		}
+
+		void sendChat(ChatFrame frame) {
+			send(encodeChat(frame));
+		}
+
+		private byte[] encodeLine(String line) {
+			return binary ? BinaryProtocol.text(line) : Connection.encodeLine(line);
+		}
+
+		private byte[] encodeChat(ChatFrame frame) {
+			if (chatIds && frame.messageId > 0) {
+				return frame.tagged(binary);
+			}
+			return binary ? frame.binary() : frame.text();
+		}
+
+		private void sendMessage(String sender, String message) {
+			sendLine(sender + ": " + message);
+		}
+
+		private boolean withinMessageLimit(String message) {
+			// Three bytes per char at most, so short messages need no encoding to tell
+			if (message.length() <= MAX_MESSAGE_BYTES / 3
+					|| message.getBytes(StandardCharsets.UTF_8).length <= MAX_MESSAGE_BYTES) {
+				return true;
+			}
+			sendMessage("SERVER", "Messages are limited to " + MAX_MESSAGE_BYTES + " bytes.");
+			return false;
+		}
+
+		void processCommand(String command) {
+			Metrics.Command cmd = commandLine.reset(command);
+			Metrics.commandIn(cmd);
 			switch (cmd) {
-				case "MESSAGE":
-					if (parts.length >= 3) {
-						String room = parts[1];
-						String message = parts[2];
+				case MESSAGE: {
+					String room = commandLine.next();
+					String message = commandLine.rest();
+					if (message != null && withinMessageLimit(message)) {
 						ChatRoom chatRoom = chatRooms.get(room);
 						if (chatRoom != null) {
 							chatRoom.broadcast(username, message);
+						} else if (cluster != null) {
+							// Nobody here is in the room, but there may be members elsewhere
+							cluster.publish(room, username, message);
 						} else if (room.equals("GENERAL")) {
 							// Broadcast to all active clients
-							for (ClientHandler client : activeClients.values()) {
-								client.sendMessage(username, message);
-							}
+							ChatFrame frame = new ChatFrame(0, room, 0, username, message);
+							sessions.forEach(client -> client.sendChat(frame));
 						}
 					}
 					break;
+				}
 
-				case "JOIN":
-					if (parts.length >= 2) {
-						String roomName = parts[1];
-						ChatRoom room = chatRooms.computeIfAbsent(roomName, ChatRoom::new);
-						room.addMember(this);
-						currentRoom = roomName;
-						UserAccount account = userAccounts.get(username);
-						if (account != null) {
-							account.joinedRooms.add(roomName);
-						}
-						sendMessage("SERVER", "Joined room: " + roomName);
+				case JOIN: {
+					String room = commandLine.next();
+					if (room != null) {
+						joinRoom(room);
 					}
 					break;
+				}
 
-				case "LEAVE":
-					if (parts.length >= 2) {
-						String roomName = parts[1];
-						ChatRoom room = chatRooms.get(roomName);
-						if (room != null) {
-							room.removeMember(this);
-							UserAccount account = userAccounts.get(username);
-							if (account != null) {
-								account.joinedRooms.remove(roomName);
-							}
+				case HISTORY: {
+					// HISTORY <room> [beforeId] [limit]
+					String room = commandLine.next();
+					if (room != null) {
+						long beforeId;
+						int limit;
+						try {
+							beforeId = commandLine.nextLong(0);
+							limit = commandLine.nextInt(joinBackfill > 0 ? joinBackfill : 50);
+						} catch (NumberFormatException e) {
+							sendMessage("SERVER", "Usage: HISTORY <room> [beforeId] [limit]");
+							break;
 						}
-						currentRoom = "GENERAL";
+						sendHistory(room, beforeId, limit);
 					}
 					break;
+				}
 
-				case "PM":
-					if (parts.length >= 3) {
-						String recipient = parts[1];
-						String message = parts[2];
-						ClientHandler targetClient = activeClients.get(recipient);
-						if (targetClient != null) {
-							targetClient.output.println(String.format("[PM] %s: %s", username, message));
-							this.output.println(String.format("[PM to %s]: %s", recipient, message));
-						} else {
-							sendMessage("SERVER", "User " + recipient + " is not online.");
-						}
+				case LEAVE: {
+					String room = commandLine.next();
+					if (room != null) {
+						leaveRoom(room);
 					}
 					break;
+				}
 
-				case "LOGOUT":
-					// Handle cleanup before logout
-					for (ChatRoom room : chatRooms.values()) {
-						room.removeMember(this);
+				case PM: {
+					String recipient = commandLine.next();
+					String message = commandLine.rest();
+					if (message != null) {
+						privateMessage(recipient, message);
 					}
-					activeClients.remove(username);
+					break;
+				}
+
+				case LOGOUT:
+					logout();
+					break;
+
+				case SUBSCRIBE:
+					// SUBSCRIBE <user|*> ...
+					presence.subscribe(presenceOutbox, remainingWords());
+					break;
+
+				case UNSUBSCRIBE:
+					presence.unsubscribe(presenceOutbox, remainingWords());
+					break;
+
+				case INBOX_ACK:
+					try {
+						inboxAck(commandLine.nextLong(0));
+					} catch (NumberFormatException e) {
+						sendMessage("SERVER", "Usage: INBOX_ACK <id>");
+					}
+					break;
+
+				default:
 					break;
 			}
 		}
 
-		@Override
-		public void run() {
-			try {
-				input = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-				output = new PrintWriter(clientSocket.getOutputStream(), true);
+		private List<String> remainingWords() {
+			List<String> words = new ArrayList<>();
+			String word;
+			while ((word = commandLine.next()) != null) {
+				words.add(word);
+			}
+			return words;
+		}
 
-				while (username == null) {
-					//output.println("1. Login\n2. Register\n3. Exit");
-					String choice = sanitizeInput(input.readLine());
-					switch (choice) {
-						case "1":
-							username = loginUser();
-						break;
-						case "2":
-							username = registerNewUser(input, output);
-						break;
-						case "3":
-							return;
-						default:          output.println("Invalid choice.");
-					}
+		private static List<String> readUsernames(ByteBuffer in) {
+			List<String> usernames = new ArrayList<>();
+			while (in.hasRemaining()) {
+				usernames.add(BinaryProtocol.readString(in));
+			}
+			return usernames;
+		}
+
+		private void joinRoom(String roomName) {
+			if (!isValidRoomName(roomName)) {
+				sendMessage("SERVER", "Room names are limited to " + MAX_ROOM_NAME_BYTES + " bytes.");
+				return;
+			}
+			ChatRoom room = enterRoom(roomName);
+			currentRoom = roomName;
+			// Read as soon as we are a member, before anyone is told, so that a
+			// message sent in reply to the join comes live rather than twice
+			List<MessageHistory.Entry> backfill = messageHistory != null && joinBackfill > 0
+					? messageHistory.before(roomName, 0, joinBackfill)
+					: Collections.emptyList();
+			rememberRoom(roomName, true);
+			if (binary) {
+				send(BinaryProtocol.room(room.id, roomName));
+			}
+			sendMessage("SERVER", "Joined room: " + roomName);
+			// Recent messages go out as ordinary chat messages so any client can show them
+			for (MessageHistory.Entry entry : backfill) {
+				sendChat(new ChatFrame(room.id, roomName, entry.id, entry.sender, entry.message));
+			}
+		}
+
+		private void leaveRoom(String roomName) {
+			ChatRoom room = rooms.remove(roomName);
+			if (room != null) {
+				ChatRoom.leave(room, this);
+				rememberRoom(roomName, false);
+			}
+			currentRoom = "GENERAL";
+		}
+
+		private ChatRoom enterRoom(String roomName) {
+			ChatRoom room = ChatRoom.join(roomName, this);
+			rooms.put(roomName, room);
+			return room;
+		}
+
+		// Leaves every room this client is in, without forgetting them for the next login
+		private void leaveAllRooms() {
+			for (ChatRoom room : rooms.values()) {
+				ChatRoom.leave(room, this);
+			}
+			rooms.clear();
+		}
+
+		private void privateMessage(String recipient, String message) {
+			if (!withinMessageLimit(message)) return;
+			if (!AccountStore.isStorableUsername(recipient)) {
+				sendMessage("SERVER", "Usernames are limited to " + AccountStore.MAX_USERNAME_BYTES + " bytes.");
+				return;
+			}
+			ClientHandler[] targets = sessions.sessions(recipient);
+			// A user whose sessions are all parked may never come back for the
+			// replay, so they count as offline if the inbox can keep the message
+			if (targets.length > 0 && (inbox == null || anyConnected(targets))) {
+				sendToAll(targets, String.format("[PM] %s: %s", username, message));
+				// Every device of the sender shows the conversation
+				sendToAll(sessions.sessions(username), String.format("[PM to %s]: %s", recipient, message));
+			} else if (cluster != null && accountStore.get(recipient) == null) {
+				// Their account is on another node, which keeps the message if they
+				// are offline; the echo or the outcome comes back through the cluster
+				cluster.privateMessage(username, recipient, message);
+			} else {
+				// A single server, or their account is here and so are they if anywhere
+				sendMessage("SERVER", storeOffline(username, recipient, message));
+			}
+		}
+
+		// Keeps a PM for a recipient who is not logged in anywhere, if they have an
+		// account here, and says what became of it
+		private static String storeOffline(String from, String to, String message) {
+			if (inbox == null || accountStore.get(to) == null) {
+				return "User " + to + " is not online.";
+			}
+			switch (inbox.store(to, from, message)) {
+				case STORED:
+					return "User " + to + " is offline; they will get your message when they log in.";
+				case FULL:
+					return "User " + to + " is offline and their inbox is full.";
+				default:
+					return "User " + to + " is not online.";
+			}
+		}
+
+		private void logout() {
+			if (username == null) return;
+			// Handle cleanup before logout
+			leaveAllRooms();
+			presence.unsubscribeAll(presenceOutbox);
+			if (sessions.remove(username, this)) {
+				presence.changed(username, false);
+				if (cluster != null) {
+					cluster.userOffline(username);
 				}
+			}
+			username = null;
+			resumeToken = null;
+			state = State.CHOOSING;
+		}
 
-				activeClients.put(username, this);
+		// RESUME <token> in place of logging in: this connection takes over the
+		// parked session, and from then on only passes input on to it
+		private void resume(String token) {
+			Metrics.commandIn(Metrics.Command.RESUME);
+			ClientHandler session = sessions.claim(token);
+			if (session == null || !session.takeOver(connection, binary, chatIds)) {
+				sendLine("Resume failed.");
+				return;
+			}
+			Metrics.SESSIONS_RESUMED.increment();
+			resumed = session;
+			session.sendInboxBatch();
+		}
 
+		// On the resuming connection's thread, which owns this session once claimed
+		private boolean takeOver(Connection newConnection, boolean newBinary, boolean newChatIds) {
+			synchronized (sendLock) {
+				// Frames were encoded for the old protocol, and what overflowed is lost
+				boolean refused = replayOverflowed || evicted || newBinary != binary || newChatIds != chatIds;
+				if (!refused) {
+					switchTo(newConnection);
+					return true;
+				}
+			}
+			// Outside the lock: leaving the rooms takes their locks
+			logout();
+			return false;
+		}
 
-				// Join the general chat room by default
-				ChatRoom generalRoom = chatRooms.computeIfAbsent("GENERAL", ChatRoom::new);
-				generalRoom.addMember(this);
+		// Under sendLock
+		private void switchTo(Connection newConnection) {
+			connection = newConnection;
+			resumeToken = SessionRegistry.newToken();
+			disconnected = false;
+			newConnection.sendFrame(encodeLine("Resume successful!"));
+			newConnection.sendFrame(encodeLine("SESSION " + resumeToken));
+			// Replayed in large frames, as rejoinRooms() does, to spare the outbound queue
+			ByteArrayOutputStream batch = new ByteArrayOutputStream();
+			for (byte[] frame : replay) {
+				batch.writeBytes(frame);
+				if (batch.size() >= REJOIN_BATCH_BYTES) {
+					newConnection.sendFrame(batch.toByteArray());
+					batch.reset();
+				}
+			}
+			if (batch.size() > 0) {
+				newConnection.sendFrame(batch.toByteArray());
+			}
+			replay = null;
+		}
 
-				// Main message processing loop
-				String clientMessage;
-				while ((clientMessage = input.readLine()) != null) {
-					processCommand(clientMessage);
+		// The connection dropped without LOGOUT: stay in the rooms and keep what
+		// arrives until a reconnect resumes the session or the window runs out
+		private void park() {
+			synchronized (sendLock) {
+				ArrayDeque<byte[]> buffer = new ArrayDeque<>();
+				// What the old connection never got to write goes first. It kept
+				// queuing after the socket closed, so the only gaps are frames it
+				// had to drop, and a replay with a gap is refused.
+				OutboundQueue unsent = connection.outbound();
+				replayOverflowed = unsent.dropped() > 0;
+				byte[] frame;
+				while ((frame = unsent.poll()) != null) {
+					buffer.add(frame);
 				}
+				replay = buffer;
+			}
+			String token = resumeToken;
+			sessions.park(token, this);
+			timers.schedule(() -> {
+				if (sessions.claim(token, this)) {
+					Metrics.SESSIONS_EXPIRED.increment();
+					logout();
+				}
+			}, resumeWindowTicks);
+		}
 
-			} catch (IOException e) {
-				SECURITY_LOGGER.warning("Client connection error: " + e.getMessage());
-			} finally {
-				try {
-					if (username != null) {
-						// Clean up when client disconnects
-						for (ChatRoom room : chatRooms.values()) {
-							room.removeMember(this);
-						}
-						activeClients.remove(username);
+		// Pushed out by a newer login of the same user; see SessionRegistry
+		void evict() {
+			evicted = true;
+			String token = resumeToken;
+			if (token != null && sessions.claim(token, this)) {
+				// Parked, so there is no connection left to do the cleanup
+				logout();
+				return;
+			}
+			sendMessage("SERVER", "Signed in from another session.");
+			connection.close();
+		}
+
+		private static boolean anyConnected(ClientHandler[] targets) {
+			for (ClientHandler target : targets) {
+				if (target.replay == null) return true;
+			}
+			return false;
+		}
+
+		private static void sendToAll(ClientHandler[] targets, String line) {
+			for (ClientHandler target : targets) {
+				target.sendLine(line);
+			}
+		}
+
+		// One "HISTORY <room> <id> <epochMillis> <sender>: <message>" line per message,
+		// oldest first, then "HISTORY_END <room> <count>". Page back by passing the
+		// lowest id seen as the next beforeId.
+		private void sendHistory(String roomName, long beforeId, int limit) {
+			limit = Math.max(0, Math.min(limit, MAX_HISTORY_PAGE));
+			List<MessageHistory.Entry> entries = messageHistory != null
+					? messageHistory.before(roomName, beforeId, limit)
+					: Collections.emptyList();
+			for (MessageHistory.Entry entry : entries) {
+				sendLine("HISTORY " + roomName + " " + entry.id + " " + entry.timestamp + " "
+						+ entry.sender + ": " + entry.message);
+			}
+			sendLine("HISTORY_END " + roomName + " " + entries.size());
+		}
+
+		// The store changes first, as the journal's compaction relies on, and is put
+		// back if the journal refuses the record
+		private void rememberRoom(String roomName, boolean joined) {
+			if (!isValidRoomName(roomName)) return;
+			try {
+				if (joined && accountStore.addRoom(username, roomName)) {
+					try {
+						accountJournal.roomJoined(username, roomName);
+					} catch (RuntimeException e) {
+						accountStore.removeRoom(username, roomName);
+						throw e;
+					}
+				} else if (!joined && accountStore.removeRoom(username, roomName)) {
+					try {
+						accountJournal.roomLeft(username, roomName);
+					} catch (RuntimeException e) {
+						accountStore.addRoom(username, roomName);
+						throw e;
 					}
-					clientSocket.close();
-				} catch (IOException e) {
-					SECURITY_LOGGER.severe("Error closing socket: " + e.getMessage());
 				}
+			} catch (IOException | RuntimeException e) {
+				SECURITY_LOGGER.warning("Could not save room membership for " + username + ": " + e.getMessage());
+			}
+		}
+
+		// Called exactly once by the transport after the socket has gone away
+		void onDisconnect() {
+			disconnected = true;
+			TimingWheel.Timeout timer = idleTimer;
+			if (timer != null) {
+				timer.cancel();
+			}
+			if (resumed != null) {
+				resumed.onDisconnect();
+				return;
+			}
+			long dropped = connection.outbound().dropped();
+			if (dropped > 0) {
+				SECURITY_LOGGER.info("Dropped " + dropped + " outbound messages for " + username);
+			}
+			if (resumeToken != null && !evicted) {
+				park();
+			} else {
+				// Clean up when client disconnects, the same way as for LOGOUT
+				logout();
 			}
 		}
 	}
 
+	// Tells a client over the connection cap why it is being dropped
+	static void rejectConnection(Socket socket) {
+		Metrics.CONNECTIONS_REJECTED.increment();
+		try (Socket rejected = socket) {
+			rejected.getOutputStream().write("Server is full, please try again later.\n".getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			SECURITY_LOGGER.warning("Error rejecting connection: " + e.getMessage());
+		}
+	}
+
+	// Connects this server to the other nodes; deliveries from them land here
+	private static void joinCluster(ServerConfig config) {
+		ClusterBus bus = new TcpClusterBus(config.nodeId, config.clusterNodes, config.outboundQueueSize * 16, config.clusterSecret);
+		Cluster joined = new Cluster(config.nodeId, config.clusterNodes.size(), bus, new Cluster.Local() {
+			@Override
+			public void deliverToRoom(String room, String sender, String message) {
+				ChatRoom chatRoom = chatRooms.get(room);
+				if (chatRoom != null) {
+					chatRoom.deliver(sender, message);
+				}
+			}
+
+			@Override
+			public boolean deliverPrivate(String from, String to, String message) {
+				ClientHandler[] targets = sessions.sessions(to);
+				// Parked sessions only count if no inbox would keep it, as for a local PM
+				if (targets.length == 0 || inbox != null && !ClientHandler.anyConnected(targets)) return false;
+				ClientHandler.sendToAll(targets, String.format("[PM] %s: %s", from, message));
+				return true;
+			}
+
+			@Override
+			public String storePrivate(String from, String to, String message) {
+				return ClientHandler.storeOffline(from, to, message);
+			}
+
+			@Override
+			public void privateDelivered(String from, String to, String message) {
+				ClientHandler.sendToAll(sessions.sessions(from), String.format("[PM to %s]: %s", to, message));
+			}
+
+			@Override
+			public void privateStored(String from, String to, String notice) {
+				ClientHandler.sendToAll(sessions.sessions(from), "SERVER: " + notice);
+			}
+
+			@Override
+			public void privateFailed(String from, String to, String message) {
+				ClientHandler.sendToAll(sessions.sessions(from), "SERVER: User " + to + " is not online.");
+			}
+
+			@Override
+			public Iterable<String> rooms() {
+				return chatRooms.keySet();
+			}
+
+			@Override
+			public Iterable<String> users() {
+				return sessions.users().keySet();
+			}
+		});
+		// Published before the bus starts, since its first onPeerUp() may come at once
+		cluster = joined;
+		try {
+			bus.start(joined);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot start cluster bus on " + config.clusterNodes.get(config.nodeId), e);
+		}
+		joined.registerMetrics();
+	}
+
 	public static void main(String[] args) {
-		// Add shutdown hook to save user accounts
+		ServerConfig config = ServerConfig.fromArgs(args);
+		passwordHasher = new PasswordHasher(config.authThreads, config.authQueueSize);
+		sessions = new SessionRegistry(config.sessionsPerUser);
+		presence = new Presence(sessions.users(), config.presenceWindowMillis);
+		// About 64 ticks per idle timeout, which keeps PINGs and reaping within a
+		// few percent of it
+		long tickMillis = config.idleTimeoutMillis > 0 ? Math.max(10, Math.min(1000, config.idleTimeoutMillis / 64)) : 1000;
+		timers = new TimingWheel("timers", tickMillis, 512);
+		if (config.idleTimeoutMillis > 0) {
+			idleTimeoutTicks = timers.toTicks(config.idleTimeoutMillis);
+		}
+		if (config.legacyIdleTimeoutMillis > 0) {
+			legacyIdleTimeoutTicks = timers.toTicks(config.legacyIdleTimeoutMillis);
+		}
+		if (config.resumeWindowMillis > 0) {
+			resumeWindowTicks = timers.toTicks(config.resumeWindowMillis);
+			replayLimit = config.resumeBuffer;
+		}
+		try {
+			messageHistory = new MessageHistory(Paths.get(config.historyDir), TimeUnit.HOURS.toMillis(config.historyRetentionHours));
+			joinBackfill = config.joinBackfill;
+			rejoinBackfill = config.rejoinBackfill;
+		} catch (IOException e) {
+			SECURITY_LOGGER.warning("Message history disabled: " + e.getMessage());
+		}
+		if (config.inboxMaxMessages > 0) {
+			try {
+				inbox = new OfflineInbox(Paths.get(config.inboxDir), config.inboxMaxMessages,
+						TimeUnit.HOURS.toMillis(config.inboxExpiryHours));
+				inboxBatch = config.inboxBatch;
+			} catch (IOException e) {
+				SECURITY_LOGGER.warning("Offline messages disabled: " + e.getMessage());
+			}
+		}
+		Semaphore connectionSlots = new Semaphore(config.maxClients);
+		NioServer nioServer = config.mode == ServerConfig.Mode.NIO ? new NioServer(config, connectionSlots) : null;
+		ExecutorService clientExecutor = config.mode == ServerConfig.Mode.VIRTUAL
+				? Executors.newVirtualThreadPerTaskExecutor()
+				: Executors.newFixedThreadPool(config.maxClients);
+		ThreadFactory writerThreads = config.mode == ServerConfig.Mode.VIRTUAL
+				? Thread.ofVirtual().name("client-writer-", 0).factory()
+				: Thread.ofPlatform().name("client-writer-", 0).daemon().factory();
+
+		Metrics.gauge("connections_active", () -> config.maxClients - connectionSlots.availablePermits());
+		Metrics.gauge("connections_max", () -> config.maxClients);
+		Metrics.gauge("users_online", sessions::userCount);
+		Metrics.gauge("sessions_active", sessions::sessionCount);
+		Metrics.gauge("sessions_parked", sessions::parkedCount);
+		Metrics.gauge("accounts", accountStore::size);
+		Metrics.gauge("rooms", chatRooms::size);
+		Metrics.roomMembers(() -> {
+			Map<String, Integer> sizes = new HashMap<>();
+			chatRooms.forEach((name, room) -> sizes.put(name, room.members.size()));
+			return sizes;
+		});
+		Metrics.gauge("account_journal_pending", accountJournal::pending);
+		if (messageHistory != null) {
+			Metrics.gauge("history_appends_dropped_total", messageHistory::dropped);
+		}
+		if (inbox != null) {
+			Metrics.gauge("inbox_messages", inbox::size);
+		}
+		passwordHasher.registerMetrics();
+		if (nioServer == null && clientExecutor instanceof ThreadPoolExecutor) {
+			Metrics.pool("clients", (ThreadPoolExecutor) clientExecutor);
+		}
+		if (!config.clusterNodes.isEmpty()) {
+			joinCluster(config);
+		}
+		Metrics.serve(config.metricsPort);
+
+		// Add shutdown hook to flush and compact the account journal
 		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-			saveUserAccounts();
+			accountJournal.close();
+			if (messageHistory != null) {
+				messageHistory.close();
+			}
+			if (inbox != null) {
+				inbox.close();
+			}
 			clientExecutor.shutdownNow();
+			passwordHasher.shutdown();
+			if (cluster != null) {
+				cluster.close();
+			}
+			if (nioServer != null) {
+				nioServer.shutdown();
+			}
 			SECURITY_LOGGER.info("Server shut down gracefully.");
 		}));
 
-		try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-			SECURITY_LOGGER.info("Secure Chat Server started on port " + PORT);
+		if (nioServer != null) {
+			try {
+				nioServer.run(config.port);
+			} catch (IOException e) {
+				SECURITY_LOGGER.severe("Server startup failed: " + e.getMessage());
+			}
+			return;
+		}
+
+		try (ServerSocket serverSocket = new ServerSocket(config.port, 1024)) {
+			SECURITY_LOGGER.info("Secure Chat Server started on port " + config.port
+					+ " (" + config.mode.name().toLowerCase() + " threads, max " + config.maxClients + " clients)");
 
 			while (true) {
 				Socket clientSocket = serverSocket.accept();
-				clientExecutor.submit(new ClientHandler(clientSocket));
+				if (!connectionSlots.tryAcquire()) {
+					rejectConnection(clientSocket);
+					continue;
+				}
+				// Finds peers that vanished, for clients too old to answer PING
+				clientSocket.setKeepAlive(true);
+				Metrics.CONNECTIONS_ACCEPTED.increment();
+				clientExecutor.submit(new SocketConnection(clientSocket, connectionSlots, writerThreads, config));
 			}
 		} catch (IOException e) {
 			SECURITY_LOGGER.severe("Server startup failed: " + e.getMessage());
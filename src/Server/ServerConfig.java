@@ -0,0 +1,212 @@
+package Server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+// Startup options, given on the command line as --name=value
+final class ServerConfig {
+	private static final Logger LOGGER = Logger.getLogger(ServerConfig.class.getName());
+
+	static final int DEFAULT_AUTH_QUEUE = 64;
+	static final int DEFAULT_PRESENCE_WINDOW_MILLIS = 250;
+	static final int DEFAULT_SESSIONS_PER_USER = 4;
+
+	enum Mode { PLATFORM, VIRTUAL, NIO }
+
+	Mode mode = Mode.PLATFORM;
+	int port = Server.PORT;
+	int maxClients = Server.MAX_CLIENTS;
+	int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	int workerThreads = Runtime.getRuntime().availableProcessors() * 2;
+	int authThreads = Runtime.getRuntime().availableProcessors();
+	int authQueueSize = DEFAULT_AUTH_QUEUE;
+	int outboundQueueSize = 1024;
+	OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DISCONNECT;
+	String historyDir = "history";
+	int historyRetentionHours = 7 * 24;
+	int joinBackfill = 50;
+	// Offline PMs: per-user cap (0 turns them off), lifetime, and messages per
+	// batch at login
+	String inboxDir = "inbox";
+	int inboxMaxMessages = 1000;
+	int inboxExpiryHours = 30 * 24;
+	int inboxBatch = 50;
+	// Per room when login puts a user back in their saved rooms
+	int rejoinBackfill = 10;
+	// Presence changes for one subscriber are batched over this long
+	int presenceWindowMillis = DEFAULT_PRESENCE_WINDOW_MILLIS;
+	// Connections silent this long are closed, after a PING at half of it; 0 never.
+	// Only for clients that answer PING; older text clients get no PING and the
+	// legacy timeout instead.
+	int idleTimeoutMillis = Server.CONNECTION_TIMEOUT;
+	int legacyIdleTimeoutMillis = 60 * 60_000;
+	// A login beyond this many sessions of the same user evicts the oldest; 1
+	// makes a new login kick the old one
+	int sessionsPerUser = DEFAULT_SESSIONS_PER_USER;
+	// How long a dropped session waits for a RESUME, and how many frames it keeps
+	// meanwhile; 0 ends sessions as soon as their connection drops. Only clients
+	// that sent SESSIONS are given a token to resume with.
+	int resumeWindowMillis = 120_000;
+	int resumeBuffer = 4096;
+	// Loopback only; 0 turns the text endpoint off (JMX stays on)
+	int metricsPort = 9400;
+	// Bus address of every node, in node id order; empty runs a single server.
+	// Nodes share presence, rooms and PMs, but each keeps its own accounts,
+	// history and offline messages, so a user has to keep to one node (see Cluster).
+	// Each node's bus listens on its own entry here, so give addresses on a private
+	// network: a node joins by proving it holds the cluster secret, but the bus
+	// traffic after that is neither encrypted nor authenticated, and anyone who can
+	// read it sees every room message and PM.
+	List<InetSocketAddress> clusterNodes = new ArrayList<>();
+	int nodeId;
+	// Read from --cluster-secret-file, so it stays out of the process list;
+	// required with --cluster-nodes and the same on every node
+	byte[] clusterSecret;
+
+	static ServerConfig fromArgs(String[] args) {
+		ServerConfig config = new ServerConfig();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (!arg.startsWith("--") || eq < 0) {
+				LOGGER.warning("Ignoring malformed option: " + arg);
+				continue;
+			}
+			String name = arg.substring(2, eq);
+			String value = arg.substring(eq + 1);
+			switch (name) {
+				case "mode":
+					config.mode = Mode.valueOf(value.toUpperCase());
+					break;
+				case "port":
+					config.port = positive(name, value);
+					break;
+				case "max-clients":
+					config.maxClients = positive(name, value);
+					break;
+				case "event-loops":
+					config.eventLoops = positive(name, value);
+					break;
+				case "worker-threads":
+					config.workerThreads = positive(name, value);
+					break;
+				case "auth-threads":
+					config.authThreads = positive(name, value);
+					break;
+				case "auth-queue":
+					config.authQueueSize = positive(name, value);
+					break;
+				case "outbound-queue":
+					config.outboundQueueSize = positive(name, value);
+					break;
+				case "overflow-policy":
+					config.overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+					break;
+				case "history-dir":
+					config.historyDir = value;
+					break;
+				case "history-retention-hours":
+					config.historyRetentionHours = positive(name, value);
+					break;
+				case "metrics-port":
+					config.metricsPort = Integer.parseInt(value);
+					break;
+				case "join-backfill":
+					config.joinBackfill = Integer.parseInt(value);
+					break;
+				case "inbox-dir":
+					config.inboxDir = value;
+					break;
+				case "inbox-max-messages":
+					config.inboxMaxMessages = Integer.parseInt(value);
+					break;
+				case "inbox-expiry-hours":
+					config.inboxExpiryHours = positive(name, value);
+					break;
+				case "inbox-batch":
+					config.inboxBatch = positive(name, value);
+					break;
+				case "presence-window-millis":
+					config.presenceWindowMillis = positive(name, value);
+					break;
+				case "cluster-nodes":
+					config.clusterNodes = addresses(name, value);
+					break;
+				case "node-id":
+					config.nodeId = Integer.parseInt(value);
+					break;
+				case "cluster-secret-file":
+					config.clusterSecret = secret(name, value);
+					break;
+				case "rejoin-backfill":
+					config.rejoinBackfill = Integer.parseInt(value);
+					break;
+				case "idle-timeout-millis":
+					config.idleTimeoutMillis = Integer.parseInt(value);
+					break;
+				case "legacy-idle-timeout-millis":
+					config.legacyIdleTimeoutMillis = Integer.parseInt(value);
+					break;
+				case "sessions-per-user":
+					config.sessionsPerUser = positive(name, value);
+					break;
+				case "resume-window-millis":
+					config.resumeWindowMillis = Integer.parseInt(value);
+					break;
+				case "resume-buffer":
+					config.resumeBuffer = positive(name, value);
+					break;
+				default:
+					LOGGER.warning("Ignoring unknown option: " + arg);
+			}
+		}
+		if (!config.clusterNodes.isEmpty() && (config.nodeId < 0 || config.nodeId >= config.clusterNodes.size())) {
+			throw new IllegalArgumentException("--node-id must index --cluster-nodes, got " + config.nodeId);
+		}
+		if (!config.clusterNodes.isEmpty() && config.clusterSecret == null) {
+			throw new IllegalArgumentException("--cluster-nodes needs --cluster-secret-file");
+		}
+		return config;
+	}
+
+	// host:port,host:port,...
+	private static List<InetSocketAddress> addresses(String name, String value) {
+		List<InetSocketAddress> addresses = new ArrayList<>();
+		for (String address : value.split(",")) {
+			int colon = address.lastIndexOf(':');
+			if (colon <= 0) {
+				throw new IllegalArgumentException("--" + name + " wants host:port entries, got " + address);
+			}
+			addresses.add(new InetSocketAddress(address.substring(0, colon), positive(name, address.substring(colon + 1))));
+		}
+		return addresses;
+	}
+
+	// The file's contents, less surrounding whitespace
+	private static byte[] secret(String name, String value) {
+		String secret;
+		try {
+			secret = Files.readString(Path.of(value)).strip();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot read --" + name + " " + value, e);
+		}
+		if (secret.isEmpty()) {
+			throw new IllegalArgumentException("--" + name + " is empty: " + value);
+		}
+		return secret.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int positive(String name, String value) {
+		int parsed = Integer.parseInt(value);
+		if (parsed <= 0) {
+			throw new IllegalArgumentException("--" + name + " must be positive, got " + value);
+		}
+		return parsed;
+	}
+}
@@ -0,0 +1,126 @@
+package Server;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Who is logged in, on which sessions. A user may be logged in from several
+// devices at once, up to maxPerUser; a login beyond that evicts the oldest, so
+// maxPerUser = 1 means a new login kicks the old one out. The user comes online
+// with their first session and goes offline with their last, which is all that
+// presence and the cluster directory see.
+//
+// A session that drops without LOGOUT can be parked under its resume token:
+// it stays registered and in its rooms, buffering what it is sent, until a new
+// connection presenting the token claims it or the resume window runs out and
+// it is cleaned up like LOGOUT. Tokens are single use.
+final class SessionRegistry {
+	private static final Server.ClientHandler[] NONE = new Server.ClientHandler[0];
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final int maxPerUser;
+	// Oldest session first; arrays are replaced, never modified
+	private final ConcurrentMap<String, Server.ClientHandler[]> byUser = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Server.ClientHandler> parked = new ConcurrentHashMap<>();
+	private final AtomicInteger sessionCount = new AtomicInteger();
+
+	SessionRegistry(int maxPerUser) {
+		this.maxPerUser = maxPerUser;
+	}
+
+	// Returns true if this is the user's first session. Sessions over the limit
+	// are unregistered here and told to go with evict().
+	boolean add(String user, Server.ClientHandler session) {
+		Server.ClientHandler[][] evicted = { NONE };
+		Server.ClientHandler[] now = byUser.compute(user, (key, current) -> {
+			if (current == null) {
+				return new Server.ClientHandler[] { session };
+			}
+			int keep = Math.min(current.length, maxPerUser - 1);
+			evicted[0] = Arrays.copyOfRange(current, 0, current.length - keep);
+			Server.ClientHandler[] sessions = Arrays.copyOfRange(current, current.length - keep, current.length + 1);
+			sessions[keep] = session;
+			return sessions;
+		});
+		sessionCount.addAndGet(1 - evicted[0].length);
+		for (Server.ClientHandler old : evicted[0]) {
+			Metrics.SESSIONS_EVICTED.increment();
+			old.evict();
+		}
+		return now.length == 1 && evicted[0].length == 0;
+	}
+
+	// Returns true if session was the user's last; false also if it was already gone
+	boolean remove(String user, Server.ClientHandler session) {
+		boolean[] removed = { false };
+		Server.ClientHandler[] now = byUser.computeIfPresent(user, (key, current) -> {
+			int index = Arrays.asList(current).indexOf(session);
+			if (index < 0) return current;
+			removed[0] = true;
+			if (current.length == 1) return null;
+			Server.ClientHandler[] sessions = new Server.ClientHandler[current.length - 1];
+			System.arraycopy(current, 0, sessions, 0, index);
+			System.arraycopy(current, index + 1, sessions, index, sessions.length - index);
+			return sessions;
+		});
+		if (removed[0]) {
+			sessionCount.decrementAndGet();
+		}
+		return removed[0] && now == null;
+	}
+
+	Server.ClientHandler[] sessions(String user) {
+		Server.ClientHandler[] sessions = byUser.get(user);
+		return sessions != null ? sessions : NONE;
+	}
+
+	void forEach(Consumer<Server.ClientHandler> action) {
+		for (Server.ClientHandler[] userSessions : byUser.values()) {
+			for (Server.ClientHandler session : userSessions) {
+				action.accept(session);
+			}
+		}
+	}
+
+	// Live view, keyed by username
+	Map<String, ?> users() {
+		return byUser;
+	}
+
+	int userCount() {
+		return byUser.size();
+	}
+
+	int sessionCount() {
+		return sessionCount.get();
+	}
+
+	int parkedCount() {
+		return parked.size();
+	}
+
+	static String newToken() {
+		byte[] token = new byte[18];
+		RANDOM.nextBytes(token);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+	}
+
+	void park(String token, Server.ClientHandler session) {
+		parked.put(token, session);
+	}
+
+	// The parked session for token, now owned by the caller; null if there is none
+	Server.ClientHandler claim(String token) {
+		return token == null ? null : parked.remove(token);
+	}
+
+	// Claims the session only if it is still parked under token
+	boolean claim(String token, Server.ClientHandler session) {
+		return parked.remove(token, session);
+	}
+}
@@ -0,0 +1,151 @@
+package Server;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+// Classic blocking transport: one thread blocks on read for the whole lifetime
+// of the socket, and a second one drains the outbound queue so a peer with a full
+// TCP window only ever stalls its own writer. Runs on either platform or virtual
+// threads, so nothing here may block while holding a monitor (that would pin a
+// virtual thread's carrier).
+class SocketConnection implements Connection, Runnable {
+	private static final int READ_BUFFER_BYTES = 8 * 1024;
+
+	private final Socket clientSocket;
+	private final Semaphore connectionSlots;
+	private final ThreadFactory writerThreads;
+	private final OutboundQueue outbound;
+	private volatile boolean closed;
+
+	SocketConnection(Socket socket, Semaphore connectionSlots, ThreadFactory writerThreads, ServerConfig config) {
+		this.clientSocket = socket;
+		this.connectionSlots = connectionSlots;
+		this.writerThreads = writerThreads;
+		this.outbound = new OutboundQueue(config.outboundQueueSize, config.overflowPolicy);
+	}
+
+	@Override
+	public void sendFrame(byte[] frame) {
+		if (closed) {
+			outbound.hold(frame);
+			return;
+		}
+		if (!outbound.offer(frame)) {
+			Metrics.SLOW_CLIENT_DISCONNECTS.increment();
+			Server.SECURITY_LOGGER.warning("Disconnecting slow client: outbound queue full");
+			close();
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			clientSocket.close();
+		} catch (IOException e) {
+			Server.SECURITY_LOGGER.severe("Error closing socket: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public OutboundQueue outbound() {
+		return outbound;
+	}
+
+	private void writeLoop(OutputStream output) {
+		try {
+			while (!closed) {
+				byte[] frame = outbound.take();
+				int frames = 0;
+				long bytes = 0;
+				// Coalesce whatever else is already queued into the same flush
+				do {
+					output.write(frame);
+					frames++;
+					bytes += frame.length;
+				} while ((frame = outbound.poll()) != null);
+				output.flush();
+				Metrics.FRAMES_OUT.add(frames);
+				Metrics.BYTES_OUT.add(bytes);
+			}
+		} catch (InterruptedException e) {
+			// Reader side has finished with the socket
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	@Override
+	public void run() {
+		Server.ClientHandler handler = new Server.ClientHandler(this);
+		handler.startIdleTimer();
+		// Virtual threads are never preempted, so a client that keeps its socket
+		// full would otherwise starve the writers (its own included) whenever
+		// carriers are scarce.
+		boolean virtual = Thread.currentThread().isVirtual();
+		FrameDecoder decoder = new FrameDecoder(new FrameDecoder.Sink() {
+			@Override
+			public void onLine(String line) {
+				handler.onLine(line);
+				if (virtual) {
+					Thread.yield();
+				}
+			}
+
+			@Override
+			public void onBinaryHello() {
+				handler.onBinaryHello();
+			}
+
+			@Override
+			public void onFrame(byte[] frame) {
+				handler.onFrame(frame);
+				if (virtual) {
+					Thread.yield();
+				}
+			}
+		});
+		Thread writer = null;
+		try {
+			InputStream input = clientSocket.getInputStream();
+			OutputStream output = new BufferedOutputStream(clientSocket.getOutputStream());
+			writer = writerThreads.newThread(() -> writeLoop(output));
+			writer.start();
+
+			// Main message processing loop
+			byte[] buffer = new byte[READ_BUFFER_BYTES];
+			int read;
+			while (!closed && (read = input.read(buffer)) >= 0) {
+				if (!decoder.feed(buffer, 0, read)) {
+					Server.SECURITY_LOGGER.warning("Closing connection that sent an oversized or malformed command");
+					break;
+				}
+			}
+		} catch (IOException e) {
+			if (!closed) {
+				Server.SECURITY_LOGGER.warning("Client connection error: " + e.getMessage());
+			}
+		} finally {
+			close();
+			// The writer must be gone before the handler takes what is left in the
+			// queue to park it, or a frame could go out twice or not at all
+			if (writer != null) {
+				writer.interrupt();
+				awaitWriter(writer);
+			}
+			handler.onDisconnect();
+			outbound.clear();
+			connectionSlots.release();
+		}
+	}
+
+	private static void awaitWriter(Thread writer) {
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,316 @@
+package Server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// ClusterBus over plain TCP. Every node listens on its own address from the
+// node list, and keeps one outbound connection to each peer, so each direction
+// of a pair is its own socket: we only ever write to outbound links and only
+// ever read from inbound ones. A link starts with a handshake that proves the
+// connecting node holds the cluster secret without sending it:
+//   listener:   16 random bytes (the challenge)
+//   connector:  int magic, int node id, HMAC-SHA256(secret, challenge + node id)
+//   listener:   one byte, once the proof checks out
+// then carries messages as
+//   int length, bytes
+// Nothing after the handshake is encrypted or authenticated, so the bus belongs
+// on a private network (see ServerConfig.clusterNodes).
+// Outbound links reconnect with backoff. Messages to a peer that is down are
+// dropped rather than queued, since onPeerUp() re-sends the state that matters.
+final class TcpClusterBus implements ClusterBus {
+	private static final Logger LOGGER = Logger.getLogger(TcpClusterBus.class.getName());
+
+	private static final int MAGIC = 0x59434c32; // "YCL2"
+	private static final int CHALLENGE_BYTES = 16;
+	private static final int PROOF_BYTES = 32;
+	private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+	private static final SecureRandom RANDOM = new SecureRandom();
+	private static final int MAX_MESSAGE_BYTES = 1024 * 1024;
+	private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+	private static final long MIN_BACKOFF_MILLIS = 100;
+	private static final long MAX_BACKOFF_MILLIS = 5000;
+
+	private final int self;
+	private final List<InetSocketAddress> nodes;
+	private final int queueCapacity;
+	private final byte[] secret;
+	private final Peer[] peers;
+	// The socket each peer is currently sending to us on
+	private final ConcurrentHashMap<Integer, Socket> inbound = new ConcurrentHashMap<>();
+	private final AtomicInteger peersUp = new AtomicInteger();
+	private final LongAdder dropped = new LongAdder();
+	private Receiver receiver;
+	private ServerSocket listener;
+	private volatile boolean closed;
+
+	TcpClusterBus(int self, List<InetSocketAddress> nodes, int queueCapacity, byte[] secret) {
+		this.self = self;
+		this.nodes = nodes;
+		this.queueCapacity = queueCapacity;
+		this.secret = secret;
+		this.peers = new Peer[nodes.size()];
+	}
+
+	@Override
+	public void start(Receiver receiver) throws IOException {
+		this.receiver = receiver;
+		listener = new ServerSocket();
+		listener.setReuseAddress(true);
+		listener.bind(nodes.get(self));
+		Thread.ofPlatform().name("cluster-accept").daemon().start(this::acceptLoop);
+		for (int node = 0; node < nodes.size(); node++) {
+			if (node == self) continue;
+			Peer peer = new Peer(node);
+			peers[node] = peer;
+			Thread.ofPlatform().name("cluster-out-" + node).daemon().start(peer::sendLoop);
+		}
+		LOGGER.info("Cluster node " + self + " listening on " + nodes.get(self) + " with " + (nodes.size() - 1) + " peers");
+	}
+
+	@Override
+	public void send(int node, byte[] message) {
+		Peer peer = peers[node];
+		if (peer == null || !peer.up || !peer.queue.offer(message)) {
+			dropped.increment();
+		}
+	}
+
+	@Override
+	public int peersUp() {
+		return peersUp.get();
+	}
+
+	@Override
+	public long dropped() {
+		return dropped.sum();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			if (listener != null) {
+				listener.close();
+			}
+		} catch (IOException e) {
+			// Shutting down anyway
+		}
+		for (Peer peer : peers) {
+			if (peer != null) {
+				peer.reconnect();
+			}
+		}
+		for (Socket socket : inbound.values()) {
+			closeQuietly(socket);
+		}
+	}
+
+	private void acceptLoop() {
+		while (!closed) {
+			try {
+				Socket socket = listener.accept();
+				Thread.ofPlatform().name("cluster-in").daemon().start(() -> readLoop(socket));
+			} catch (IOException e) {
+				if (!closed) {
+					LOGGER.warning("Cluster accept failed: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private void readLoop(Socket socket) {
+		int node = -1;
+		try (socket) {
+			socket.setTcpNoDelay(true);
+			// A connection that never finishes the handshake doesn't keep its thread
+			socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+			byte[] challenge = new byte[CHALLENGE_BYTES];
+			RANDOM.nextBytes(challenge);
+			OutputStream output = socket.getOutputStream();
+			output.write(challenge);
+			output.flush();
+			DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			if (input.readInt() != MAGIC) {
+				LOGGER.warning("Dropping cluster link from " + socket.getRemoteSocketAddress() + ": bad handshake");
+				return;
+			}
+			int claimed = input.readInt();
+			if (claimed < 0 || claimed >= nodes.size() || claimed == self) {
+				LOGGER.warning("Dropping cluster link from " + socket.getRemoteSocketAddress() + ": bad node id " + claimed);
+				return;
+			}
+			byte[] proof = new byte[PROOF_BYTES];
+			input.readFully(proof);
+			if (!MessageDigest.isEqual(proof, proof(challenge, claimed))) {
+				LOGGER.warning("Dropping cluster link from " + socket.getRemoteSocketAddress() + ": wrong cluster secret");
+				return;
+			}
+			output.write(1);
+			output.flush();
+			socket.setSoTimeout(0);
+			node = claimed;
+			// A new link from a node means it restarted or reconnected; whatever
+			// it told us over the old one is stale, and it will re-send
+			Socket previous = inbound.put(node, socket);
+			if (previous != null) {
+				closeQuietly(previous);
+			}
+			receiver.onPeerDown(node);
+			// Our link to it is probably dead too, or in backoff; don't wait to find out
+			Peer peer = peers[node];
+			if (previous != null || !peer.up) {
+				peer.reconnect();
+			}
+			while (!closed) {
+				int length = input.readInt();
+				if (length <= 0 || length > MAX_MESSAGE_BYTES) {
+					throw new IOException("bad message length " + length);
+				}
+				byte[] message = new byte[length];
+				input.readFully(message);
+				receiver.onMessage(node, message);
+			}
+		} catch (EOFException e) {
+			// Peer went away
+		} catch (IOException e) {
+			if (!closed) {
+				LOGGER.warning("Cluster link from node " + node + " failed: " + e.getMessage());
+			}
+		} finally {
+			if (node >= 0 && inbound.remove(node, socket) && !closed) {
+				receiver.onPeerDown(node);
+				// Writes would go into a socket nobody reads; reconnect once it is back
+				peers[node].reconnect();
+			}
+		}
+	}
+
+	// What a node proves it holds the secret with, for one challenge
+	private byte[] proof(byte[] challenge, int node) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+			mac.update(challenge);
+			mac.update(ByteBuffer.allocate(4).putInt(node).array());
+			return mac.doFinal();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing left to do with it
+		}
+	}
+
+	private final class Peer {
+		final int node;
+		final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(queueCapacity);
+		// Released to cut a backoff short
+		final Semaphore kick = new Semaphore(0);
+		volatile boolean up;
+		volatile Socket socket;
+
+		Peer(int node) {
+			this.node = node;
+		}
+
+		void sendLoop() {
+			long backoff = MIN_BACKOFF_MILLIS;
+			while (!closed) {
+				Socket connected = new Socket();
+				try {
+					connected.connect(nodes.get(node), CONNECT_TIMEOUT_MILLIS);
+					connected.setTcpNoDelay(true);
+					socket = connected;
+					connected.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+					DataInputStream input = new DataInputStream(connected.getInputStream());
+					byte[] challenge = new byte[CHALLENGE_BYTES];
+					input.readFully(challenge);
+					DataOutputStream output = new DataOutputStream(new BufferedOutputStream(connected.getOutputStream()));
+					output.writeInt(MAGIC);
+					output.writeInt(self);
+					output.write(proof(challenge, self));
+					output.flush();
+					// Closed instead if the peer doesn't share our secret
+					if (input.read() != 1) {
+						LOGGER.warning("Cluster node " + node + " refused our handshake; check --cluster-secret-file");
+						throw new EOFException("handshake refused");
+					}
+					connected.setSoTimeout(0);
+					backoff = MIN_BACKOFF_MILLIS;
+					kick.drainPermits();
+					up = true;
+					peersUp.incrementAndGet();
+					LOGGER.info("Cluster link to node " + node + " is up");
+					try {
+						receiver.onPeerUp(node);
+						writeLoop(connected, output);
+					} finally {
+						up = false;
+						peersUp.decrementAndGet();
+						int stale = queue.size();
+						queue.clear();
+						dropped.add(stale);
+						LOGGER.info("Cluster link to node " + node + " is down");
+					}
+				} catch (IOException e) {
+					// Not reachable yet, or the link broke; retry below
+				} catch (InterruptedException e) {
+					return;
+				} finally {
+					closeQuietly(connected);
+				}
+				try {
+					kick.tryAcquire(backoff, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+			}
+		}
+
+		private void writeLoop(Socket connected, DataOutputStream output) throws IOException, InterruptedException {
+			while (!closed && !connected.isClosed()) {
+				byte[] message = queue.poll(1, TimeUnit.SECONDS);
+				if (message == null) continue;
+				// Coalesce whatever else is already queued into the same flush
+				do {
+					output.writeInt(message.length);
+					output.write(message);
+				} while ((message = queue.poll()) != null);
+				output.flush();
+			}
+		}
+
+		// Drops the current link (if any) and retries at once
+		void reconnect() {
+			up = false;
+			Socket current = socket;
+			if (current != null) {
+				closeQuietly(current);
+			}
+			kick.release();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package Server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Hashed timing wheel: one thread advances a cursor over a ring of buckets once
+// per tick, and a timeout sits in the bucket its deadline hashes to, along with
+// how many more turns of the wheel it has to wait. Scheduling and cancelling
+// are O(1) from any thread, and a tick only visits one bucket, so the cost of
+// tracking 100k connections is spread evenly rather than paid every tick.
+//
+// New timeouts go through a lock-free queue that the wheel thread moves into
+// the buckets, so the buckets themselves are only touched by that thread.
+// Tasks run on the wheel thread and must not block.
+final class TimingWheel {
+	private static final Logger LOGGER = Logger.getLogger(TimingWheel.class.getName());
+
+	static final class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private long rounds;
+		private volatile boolean cancelled;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		void cancel() {
+			cancelled = true;
+		}
+	}
+
+	private final long tickMillis;
+	private final List<Queue<Timeout>> buckets;
+	private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+	private final Thread worker;
+	// Ticks since start, counting the one being expired; read by anyone as a
+	// cheap coarse clock
+	private volatile long tick;
+
+	TimingWheel(String name, long tickMillis, int slots) {
+		this.tickMillis = tickMillis;
+		this.buckets = new ArrayList<>(slots);
+		for (int i = 0; i < slots; i++) {
+			buckets.add(new ArrayDeque<>());
+		}
+		worker = Thread.ofPlatform().name(name).daemon().start(this::run);
+	}
+
+	long now() {
+		return tick;
+	}
+
+	long toTicks(long millis) {
+		return Math.max(1, (millis + tickMillis - 1) / tickMillis);
+	}
+
+	// Runs task on the wheel thread after about delayTicks ticks
+	Timeout schedule(Runnable task, long delayTicks) {
+		Timeout timeout = new Timeout(task, tick + Math.max(1, delayTicks));
+		incoming.add(timeout);
+		return timeout;
+	}
+
+	void shutdown() {
+		worker.interrupt();
+	}
+
+	private void run() {
+		long start = System.nanoTime();
+		while (!Thread.currentThread().isInterrupted()) {
+			// Sleep to the next tick boundary so ticks don't drift with the work done
+			long next = start + TimeUnit.MILLISECONDS.toNanos(tickMillis) * (tick + 1);
+			long sleep = next - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			long current = tick + 1;
+			tick = current;
+			place(current);
+			expire(buckets.get((int) (current % buckets.size())));
+		}
+	}
+
+	private void place(long current) {
+		Timeout timeout;
+		while ((timeout = incoming.poll()) != null) {
+			if (timeout.cancelled) continue;
+			long due = Math.max(timeout.deadline, current);
+			timeout.rounds = (due - current) / buckets.size();
+			buckets.get((int) (due % buckets.size())).add(timeout);
+		}
+	}
+
+	private void expire(Queue<Timeout> bucket) {
+		for (int i = bucket.size(); i > 0; i--) {
+			Timeout timeout = bucket.poll();
+			if (timeout.cancelled) continue;
+			if (timeout.rounds > 0) {
+				timeout.rounds--;
+				bucket.add(timeout);
+				continue;
+			}
+			try {
+				timeout.task.run();
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Timer task failed", e);
+			}
+		}
+	}
+}